@@ -0,0 +1,63 @@
+package com.nianing.downloadmanager;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records when each download reaches a final status.
+ */
+class CompletionObserver implements DownloadObserver {
+    private final int mExpected;
+    private final Map<Long, Long> mFinished = new HashMap<Long, Long>();
+    private int mFailed;
+
+    CompletionObserver(int expected) {
+        mExpected = expected;
+    }
+
+    @Override
+    public synchronized void onChange(List<DownloadEvent> events) {
+        final long now = SystemClock.elapsedRealtime();
+        for (DownloadEvent event : events) {
+            if (event.mNewStatus == DownloadEvent.STATUS_UNKNOWN
+                    || mFinished.containsKey(event.mId)) {
+                continue;
+            }
+            final int status = DownloadManager.translateStatus(event.mNewStatus);
+            if (status == DownloadManager.STATUS_SUCCESSFUL
+                    || status == DownloadManager.STATUS_FAILED) {
+                mFinished.put(event.mId, now);
+                if (status == DownloadManager.STATUS_FAILED) {
+                    mFailed++;
+                }
+            }
+        }
+        if (mFinished.size() >= mExpected) {
+            notifyAll();
+        }
+    }
+
+    synchronized boolean await(long timeout) throws InterruptedException {
+        final long deadline = SystemClock.elapsedRealtime() + timeout;
+        while (mFinished.size() < mExpected) {
+            final long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    synchronized long getFinishTime(long id) {
+        final Long time = mFinished.get(id);
+        return time != null ? time : SystemClock.elapsedRealtime();
+    }
+
+    synchronized int getFailedCount() {
+        return mFailed;
+    }
+}
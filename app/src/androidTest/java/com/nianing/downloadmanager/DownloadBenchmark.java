@@ -0,0 +1,139 @@
+package com.nianing.downloadmanager;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * End-to-end throughput benchmarks, downloading from a {@link LocalHttpServer} on the
+ * device so that the numbers measure the download manager rather than the network.
+ * <p>
+ * Every scenario enqueues its downloads in one batch and waits for all of them to finish,
+ * then logs the throughput in MB/s, the downloads finished per second, and the 50th and
+ * 99th percentile of the time from enqueueing a download to its completion. Run with
+ * {@code adb shell am instrument -w -e class com.nianing.downloadmanager.DownloadBenchmark}
+ * and read the results from logcat under {@value #TAG}.
+ */
+public class DownloadBenchmark extends AndroidTestCase {
+    private static final String TAG = "DownloadBenchmark";
+
+    private static final long TIMEOUT = 30 * 60 * 1000;
+
+    private LocalHttpServer mServer;
+    private DownloadManager mManager;
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalHttpServer();
+        mServer.start();
+        mManager = DownloadManager.getInstance(getContext());
+        mDir = new File(getContext().getCacheDir(), TAG);
+        mDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        super.tearDown();
+    }
+
+    public void testSingleLargeDownload() throws Exception {
+        mServer.addFile("/large", 64 * 1024 * 1024, false);
+        run("1 x 64MB", "/large", 1);
+    }
+
+    public void testSingleSegmentedDownload() throws Exception {
+        mServer.addFile("/large", 64 * 1024 * 1024, false);
+        run("1 x 64MB, 4 segments", "/large", 1, 4);
+    }
+
+    public void testHundredDownloads() throws Exception {
+        mServer.addFile("/medium", 1024 * 1024, false);
+        run("100 x 1MB", "/medium", 100);
+    }
+
+    public void testHundredChunkedDownloads() throws Exception {
+        mServer.addFile("/medium", 1024 * 1024, true);
+        run("100 x 1MB, chunked", "/medium", 100);
+    }
+
+    public void testHundredRedirectedDownloads() throws Exception {
+        mServer.addFile("/medium", 1024 * 1024, false);
+        mServer.addRedirect("/redirect", "/medium");
+        run("100 x 1MB, redirected", "/redirect", 100);
+    }
+
+    public void testHundredDownloadsWithLatency() throws Exception {
+        mServer.addFile("/medium", 1024 * 1024, false);
+        mServer.setLatency(50);
+        mServer.setBandwidth(2 * 1024 * 1024);
+        run("100 x 1MB, 50ms, 2MB/s per connection", "/medium", 100);
+    }
+
+    public void testTenThousandDownloads() throws Exception {
+        mServer.addFile("/small", 4 * 1024, false);
+        run("10000 x 4KB", "/small", 10000);
+    }
+
+    private void run(String name, String path, int count) throws Exception {
+        run(name, path, count, 1);
+    }
+
+    private void run(String name, String path, int count, int segments) throws Exception {
+        final List<DownloadManager.Request> requests =
+                new ArrayList<DownloadManager.Request>(count);
+        for (int i = 0; i < count; i++) {
+            requests.add(new DownloadManager.Request(Uri.parse(mServer.getUrl(path)))
+                    .setDestinationPath(new File(mDir, "file" + i).getAbsolutePath())
+                    .setSegmentCount(segments));
+        }
+
+        final CompletionObserver observer = new CompletionObserver(count);
+        mManager.registerObserverForStatus(observer,
+                DownloadManager.STATUS_SUCCESSFUL | DownloadManager.STATUS_FAILED);
+        final long start = SystemClock.elapsedRealtime();
+        final long[] ids;
+        try {
+            ids = mManager.enqueue(requests);
+            assertTrue(name + " timed out", observer.await(TIMEOUT));
+        } finally {
+            mManager.unregisterObserver(observer);
+        }
+        final long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+
+        final long[] latencies = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            latencies[i] = observer.getFinishTime(ids[i]) - start;
+        }
+        Arrays.sort(latencies);
+        final double seconds = elapsed / 1000.0;
+        Log.i(TAG, String.format("%s: %.1f MB/s, %.1f downloads/s, p50 %d ms, p99 %d ms,"
+                + " %d failed, %d requests over %d connections",
+                name, mServer.getBytesSent() / (1024.0 * 1024.0) / seconds, count / seconds,
+                percentile(latencies, 50), percentile(latencies, 99), observer.getFailedCount(),
+                mServer.getRequestCount(), mServer.getConnectionCount()));
+        Log.i(TAG, ConnectionStats.getInstance().toString());
+
+        mManager.remove(ids);
+        assertEquals(name + " had failures", 0, observer.getFailedCount());
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        final int index = (int) Math.ceil(sorted.length * percentile / 100.0) - 1;
+        return sorted[Math.max(0, index)];
+    }
+}
@@ -0,0 +1,279 @@
+package com.nianing.downloadmanager;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Microbenchmarks of the hot paths that need the Android framework, and so can't run in
+ * the JMH module on the JVM: the transfer loop fed from a synthetic stream, provider
+ * updates and queries against the real SQLite database, reading rows into
+ * {@link DownloadInfo}, and the translating cursor of {@link DownloadManager#query}.
+ * <p>
+ * Each benchmark is warmed up, then timed over a number of rounds; the median time per
+ * operation is logged under {@value #TAG}.
+ */
+public class HotPathBenchmark extends AndroidTestCase {
+    private static final String TAG = "HotPathBenchmark";
+
+    private static final int ROWS = 1000;
+    private static final int ROUNDS = 10;
+
+    private DownloadManager mManager;
+    private DownloadProvider mProvider;
+    private File mDir;
+    private long[] mIds;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mManager = DownloadManager.getInstance(getContext());
+        mProvider = DownloadProvider.getInstance(getContext());
+        mDir = new File(getContext().getCacheDir(), TAG);
+        mDir.mkdirs();
+
+        // Completed downloads, so the service leaves them alone
+        mIds = new long[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            mIds[i] = mManager.addCompletedDownload("file" + i, TAG, false,
+                    "application/octet-stream", new File(mDir, "file" + i).getAbsolutePath(),
+                    1024, false);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mManager.remove(mIds);
+        super.tearDown();
+    }
+
+    public void testProviderUpdate() throws Exception {
+        measure("DownloadProvider.update", ROWS, new Operation() {
+            @Override
+            public void run(int round) {
+                final ContentValues values = new ContentValues();
+                values.put(Downloads.Columns.COLUMN_CURRENT_BYTES, round);
+                for (long id : mIds) {
+                    mProvider.update(id, values, null, null);
+                }
+            }
+        });
+    }
+
+    public void testProviderQuery() throws Exception {
+        measure("DownloadProvider.query", ROWS, new Operation() {
+            @Override
+            public void run(int round) {
+                for (long id : mIds) {
+                    final Cursor cursor = mProvider.query(id, null, null, null, null);
+                    try {
+                        cursor.moveToFirst();
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            }
+        });
+    }
+
+    public void testReaderUpdateFromDatabase() throws Exception {
+        final Cursor cursor = mProvider.query(-1, null, null, null, null);
+        try {
+            final DownloadInfo.Reader reader = new DownloadInfo.Reader(cursor);
+            cursor.moveToFirst();
+            final DownloadInfo info = reader.newDownloadInfo(getContext(),
+                    new SystemFacade(getContext()), mProvider);
+            measure("DownloadInfo.Reader.updateFromDatabase", cursor.getCount(), new Operation() {
+                @Override
+                public void run(int round) {
+                    for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                        reader.updateFromDatabase(info);
+                    }
+                }
+            });
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testCursorTranslatorGetLong() throws Exception {
+        final Cursor cursor = mManager.query(new DownloadManager.Query().setFilterById(mIds));
+        try {
+            final int status = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
+            final int reason = cursor.getColumnIndex(DownloadManager.COLUMN_REASON);
+            final int total = cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES);
+            measure("CursorTranslator.getLong", cursor.getCount() * 3, new Operation() {
+                @Override
+                public void run(int round) {
+                    for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                        cursor.getLong(status);
+                        cursor.getLong(reason);
+                        cursor.getLong(total);
+                    }
+                }
+            });
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testValidateSelection() throws Exception {
+        final Set<String> columns = new HashSet<String>(Arrays.asList(
+                Downloads.Columns.COLUMN_STATUS, Downloads.Columns.COLUMN_DELETED,
+                Downloads.Columns.COLUMN_PACKAGE));
+        final String selection = "(" + Downloads.Columns.COLUMN_STATUS + " >= '200' AND "
+                + Downloads.Columns.COLUMN_STATUS + " < '300') OR ("
+                + Downloads.Columns.COLUMN_DELETED + " != '1' AND "
+                + Downloads.Columns.COLUMN_PACKAGE + " = ?)";
+        measure("Helpers.validateSelection", ROWS, new Operation() {
+            @Override
+            public void run(int round) {
+                for (int i = 0; i < ROWS; i++) {
+                    Helpers.validateSelection(selection, columns);
+                }
+            }
+        });
+    }
+
+    public void testTransferData() throws Exception {
+        final long length = 64 * 1024 * 1024;
+        mManager.setHttpTransport(new SyntheticTransport(length));
+        try {
+            measure("DownloadThread.transferData, per MB", (int) (length >> 20), new Operation() {
+                @Override
+                public void run(int round) throws Exception {
+                    final CompletionObserver observer = new CompletionObserver(1);
+                    mManager.registerObserverForStatus(observer,
+                            DownloadManager.STATUS_SUCCESSFUL | DownloadManager.STATUS_FAILED);
+                    try {
+                        final long id = mManager.enqueue(new DownloadManager.Request(
+                                Uri.parse("http://synthetic.invalid/" + round))
+                                .setDestinationPath(
+                                        new File(mDir, "transfer" + round).getAbsolutePath()));
+                        assertTrue(observer.await(5 * 60 * 1000));
+                        assertEquals(0, observer.getFailedCount());
+                        mManager.remove(id);
+                    } finally {
+                        mManager.unregisterObserver(observer);
+                    }
+                }
+            });
+        } finally {
+            mManager.setHttpTransport(null);
+        }
+    }
+
+    private interface Operation {
+        void run(int round) throws Exception;
+    }
+
+    /**
+     * Run the operation a few times to warm up, then time it and log the median time for
+     * each of the given number of operations it performs.
+     */
+    private static void measure(String name, int operations, Operation operation)
+            throws Exception {
+        for (int i = 0; i < 3; i++) {
+            operation.run(-1 - i);
+        }
+        final long[] times = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            final long start = System.nanoTime();
+            operation.run(i);
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        Log.i(TAG, String.format("%s: %d ns/op (min %d, max %d)", name,
+                times[ROUNDS / 2] / operations, times[0] / operations,
+                times[ROUNDS - 1] / operations));
+    }
+
+    /**
+     * Answers every request with a body of the given length generated in memory, so that
+     * the transfer loop is measured without sockets.
+     */
+    private static class SyntheticTransport implements HttpTransport {
+        private final long mLength;
+
+        SyntheticTransport(long length) {
+            mLength = length;
+        }
+
+        @Override
+        public Response execute(Request request) {
+            return new Response() {
+                @Override
+                public int getCode() {
+                    return 200;
+                }
+
+                @Override
+                public String getMessage() {
+                    return "OK";
+                }
+
+                @Override
+                public String getHeader(String name) {
+                    if ("Content-Length".equalsIgnoreCase(name)) {
+                        return Long.toString(mLength);
+                    } else if ("ETag".equalsIgnoreCase(name)) {
+                        return "\"synthetic\"";
+                    } else if ("Content-Type".equalsIgnoreCase(name)) {
+                        return "application/octet-stream";
+                    }
+                    return null;
+                }
+
+                @Override
+                public InputStream getBody() {
+                    return new SyntheticInputStream(mLength);
+                }
+
+                @Override
+                public void release(boolean consumed) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            };
+        }
+    }
+
+    private static class SyntheticInputStream extends InputStream {
+        private long mRemaining;
+
+        SyntheticInputStream(long length) {
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            mRemaining--;
+            return (int) (mRemaining & 0xff);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            final int n = (int) Math.min(count, mRemaining);
+            // The content doesn't matter; leave whatever the buffer held
+            mRemaining -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.nianing.downloadmanager;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal in-process HTTP/1.1 server standing in for a CDN in benchmarks, so that
+ * downloads can be measured without the network.
+ * <p>
+ * Serves generated files of any size, whose content is a function of the offset so it can
+ * be checked cheaply, with an ETag, Range and If-Match support, and optionally chunked
+ * encoding instead of a Content-Length. Paths can redirect to other paths, or answer 503
+ * with Retry-After a number of times before serving. Every response can be delayed by a
+ * fixed latency, and every connection shaped to a bandwidth. Connections are kept alive
+ * until the client closes them.
+ */
+public class LocalHttpServer {
+    private static final String TAG = "LocalHttpServer";
+
+    /** Size of the pieces the body is written in, and shaped at. */
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private static class Resource {
+        final long mLength;
+        final String mETag;
+        final boolean mChunked;
+
+        Resource(long length, boolean chunked) {
+            mLength = length;
+            mETag = "\"" + Long.toHexString(length) + "-" + (chunked ? "c" : "f") + "\"";
+            mChunked = chunked;
+        }
+    }
+
+    private final Map<String, Resource> mResources = new ConcurrentHashMap<String, Resource>();
+    private final Map<String, String> mRedirects = new ConcurrentHashMap<String, String>();
+    private final Map<String, AtomicInteger> mUnavailable =
+            new ConcurrentHashMap<String, AtomicInteger>();
+    private final Map<String, Integer> mRetryAfter = new ConcurrentHashMap<String, Integer>();
+
+    private volatile long mLatency;
+    private volatile long mBandwidth;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mConnections = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private ServerSocket mServerSocket;
+
+    /**
+     * Start listening on a free port of the loopback interface.
+     */
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+    }
+
+    public void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the URL of the given path, which must start with a slash.
+     */
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    /**
+     * Serve a generated file of the given size at the given path.
+     *
+     * @param chunked if the body should be sent with chunked encoding, without a length
+     */
+    public void addFile(String path, long length, boolean chunked) {
+        mResources.put(path, new Resource(length, chunked));
+    }
+
+    /** Answer requests for one path with a 302 to another. */
+    public void addRedirect(String from, String to) {
+        mRedirects.put(from, to);
+    }
+
+    /** Answer the next {@code count} requests for a path with 503 and Retry-After. */
+    public void setUnavailable(String path, int count, int retryAfterSeconds) {
+        mUnavailable.put(path, new AtomicInteger(count));
+        mRetryAfter.put(path, retryAfterSeconds);
+    }
+
+    /** Delay every response by the given time, in ms. */
+    public void setLatency(long millis) {
+        mLatency = millis;
+    }
+
+    /** Limit every connection to the given bytes per second, 0 for no limit. */
+    public void setBandwidth(long bytesPerSecond) {
+        mBandwidth = bytesPerSecond;
+    }
+
+    /** Returns the byte at the given offset of every generated file. */
+    public static byte byteAt(long offset) {
+        return (byte) (offset * 31 + (offset >>> 8));
+    }
+
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    public long getConnectionCount() {
+        return mConnections.get();
+    }
+
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            mConnections.incrementAndGet();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            while (true) {
+                final String requestLine = readLine(in);
+                if (requestLine == null || requestLine.length() == 0) {
+                    return;
+                }
+                final Map<String, String> headers = new HashMap<String, String>();
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    final int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+                mRequests.incrementAndGet();
+                final String[] parts = requestLine.split(" ");
+                if (parts.length < 2) {
+                    return;
+                }
+                if (mLatency > 0) {
+                    Thread.sleep(mLatency);
+                }
+                respond(parts[0], parts[1], headers, out);
+                out.flush();
+                if ("close".equalsIgnoreCase(headers.get("connection"))) {
+                    return;
+                }
+            }
+        } catch (SocketException e) {
+            // Client went away
+        } catch (IOException e) {
+            Log.w(TAG, "connection failed", e);
+        } catch (InterruptedException e) {
+            // Shutting down
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private void respond(String method, String path, Map<String, String> headers,
+            OutputStream out) throws IOException, InterruptedException {
+        final String redirect = mRedirects.get(path);
+        if (redirect != null) {
+            writeHead(out, 302, "Found", "Location: " + getUrl(redirect), "Content-Length: 0");
+            return;
+        }
+        final AtomicInteger unavailable = mUnavailable.get(path);
+        if (unavailable != null && unavailable.getAndDecrement() > 0) {
+            writeHead(out, 503, "Service Unavailable", "Retry-After: " + mRetryAfter.get(path),
+                    "Content-Length: 0");
+            return;
+        }
+        final Resource resource = mResources.get(path);
+        if (resource == null || !"GET".equals(method)) {
+            writeHead(out, 404, "Not Found", "Content-Length: 0");
+            return;
+        }
+        final String ifMatch = headers.get("if-match");
+        if (ifMatch != null && !ifMatch.equals(resource.mETag)) {
+            writeHead(out, 412, "Precondition Failed", "Content-Length: 0");
+            return;
+        }
+
+        long start = 0;
+        long end = resource.mLength - 1;
+        final String range = headers.get("range");
+        final boolean partial = range != null && range.startsWith("bytes=");
+        if (partial) {
+            final String spec = range.substring("bytes=".length());
+            final int dash = spec.indexOf('-');
+            start = Long.parseLong(spec.substring(0, dash));
+            if (dash < spec.length() - 1) {
+                end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+            }
+            if (start > end) {
+                writeHead(out, 416, "Requested Range Not Satisfiable",
+                        "Content-Range: bytes */" + resource.mLength, "Content-Length: 0");
+                return;
+            }
+        }
+
+        final String etag = "ETag: " + resource.mETag;
+        final String acceptRanges = "Accept-Ranges: bytes";
+        final String length = resource.mChunked
+                ? "Transfer-Encoding: chunked" : "Content-Length: " + (end - start + 1);
+        if (partial) {
+            writeHead(out, 206, "Partial Content", etag, acceptRanges, length,
+                    "Content-Range: bytes " + start + "-" + end + "/" + resource.mLength);
+        } else {
+            writeHead(out, 200, "OK", etag, acceptRanges, length);
+        }
+        writeBody(out, start, end + 1, resource.mChunked);
+    }
+
+    private void writeHead(OutputStream out, int code, String message, String... headers)
+            throws IOException {
+        final StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(code).append(' ').append(message).append("\r\n");
+        for (String header : headers) {
+            head.append(header).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes("US-ASCII"));
+    }
+
+    private void writeBody(OutputStream out, long start, long end, boolean chunked)
+            throws IOException, InterruptedException {
+        final byte[] buffer = new byte[CHUNK_SIZE];
+        final long begin = System.nanoTime();
+        long sent = 0;
+        for (long offset = start; offset < end; ) {
+            final int count = (int) Math.min(buffer.length, end - offset);
+            for (int i = 0; i < count; i++) {
+                buffer[i] = byteAt(offset + i);
+            }
+            if (chunked) {
+                out.write((Integer.toHexString(count) + "\r\n").getBytes("US-ASCII"));
+            }
+            out.write(buffer, 0, count);
+            if (chunked) {
+                out.write("\r\n".getBytes("US-ASCII"));
+            }
+            offset += count;
+            sent += count;
+            mBytesSent.addAndGet(count);
+
+            final long bandwidth = mBandwidth;
+            if (bandwidth > 0) {
+                // Sleep until this connection is back under its budget
+                final long due = sent * 1000 / bandwidth;
+                final long elapsed = (System.nanoTime() - begin) / 1000000;
+                if (due > elapsed) {
+                    out.flush();
+                    Thread.sleep(due - elapsed);
+                }
+            }
+        }
+        if (chunked) {
+            out.write("0\r\n\r\n".getBytes("US-ASCII"));
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                final int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+}
@@ -0,0 +1,111 @@
+package com.nianing.downloadmanager;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caps the bandwidth of downloads with a hierarchy of {@link TokenBucket}s: one shared by
+ * all downloads, one per package and one per download, each optional. Every buffer a
+ * {@link DownloadThread} reads is charged to each bucket that applies, and the thread then
+ * waits as long as the most indebted of them requires. Charging per buffer rather than
+ * per byte keeps the overhead to a few lock acquisitions per read, and nothing at all
+ * while no limit is set. Rates may be changed at any time and apply from the next buffer.
+ */
+public class BandwidthLimiter {
+    private static BandwidthLimiter sInstance;
+
+    private final TokenBucket mGlobal = new TokenBucket(0, SystemClock.elapsedRealtime());
+    private final ConcurrentHashMap<String, TokenBucket> mPerPackage =
+            new ConcurrentHashMap<String, TokenBucket>();
+    private final ConcurrentHashMap<Long, TokenBucket> mPerDownload =
+            new ConcurrentHashMap<Long, TokenBucket>();
+
+    private volatile boolean mLimited;
+
+    public static synchronized BandwidthLimiter getInstance() {
+        if (sInstance == null) {
+            sInstance = new BandwidthLimiter();
+        }
+        return sInstance;
+    }
+
+    private BandwidthLimiter() {
+    }
+
+    /**
+     * Set the rate all downloads together may use, in bytes per second; 0 for no limit.
+     */
+    public synchronized void setGlobalRate(long bytesPerSecond) {
+        mGlobal.setRate(bytesPerSecond, SystemClock.elapsedRealtime());
+        updateLimited();
+    }
+
+    /**
+     * Set the rate the downloads of a package together may use, in bytes per second; 0
+     * for no limit.
+     */
+    public void setPackageRate(String packageName, long bytesPerSecond) {
+        setRate(mPerPackage, packageName, bytesPerSecond);
+    }
+
+    /**
+     * Set the rate a single download may use, in bytes per second; 0 for no limit.
+     */
+    public void setDownloadRate(long id, long bytesPerSecond) {
+        setRate(mPerDownload, id, bytesPerSecond);
+    }
+
+    /**
+     * Drop the limit of a download that reached a final status or was deleted, so that
+     * its bucket doesn't keep every other download on the throttled path.
+     */
+    void removeDownload(long id) {
+        if (mPerDownload.containsKey(id)) {
+            setRate(mPerDownload, id, 0);
+        }
+    }
+
+    private synchronized <K> void setRate(ConcurrentHashMap<K, TokenBucket> buckets, K key,
+            long bytesPerSecond) {
+        if (bytesPerSecond == 0) {
+            buckets.remove(key);
+        } else {
+            final TokenBucket bucket = buckets.get(key);
+            if (bucket != null) {
+                bucket.setRate(bytesPerSecond, SystemClock.elapsedRealtime());
+            } else {
+                buckets.put(key, new TokenBucket(bytesPerSecond, SystemClock.elapsedRealtime()));
+            }
+        }
+        updateLimited();
+    }
+
+    private synchronized void updateLimited() {
+        mLimited = mGlobal.getRate() > 0 || !mPerPackage.isEmpty() || !mPerDownload.isEmpty();
+    }
+
+    /**
+     * Charge a buffer a download just read.
+     *
+     * @return how long the download should wait before reading more, in ms
+     */
+    long charge(long id, String packageName, int bytes) {
+        if (!mLimited) {
+            return 0;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        long delay = mGlobal.charge(bytes, now);
+        if (packageName != null) {
+            final TokenBucket bucket = mPerPackage.get(packageName);
+            if (bucket != null) {
+                delay = Math.max(delay, bucket.charge(bytes, now));
+            }
+        }
+        final TokenBucket bucket = mPerDownload.get(id);
+        if (bucket != null) {
+            delay = Math.max(delay, bucket.charge(bytes, now));
+        }
+        return delay;
+    }
+}
@@ -0,0 +1,131 @@
+package com.nianing.downloadmanager;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of stream buffers shared by all {@link DownloadThread}s, so that
+ * short downloads don't each allocate fresh arrays for the transfer loop.
+ * <p>
+ * Buffers are kept in one free list per power-of-two size between
+ * {@link Constants#MIN_BUFFER_SIZE} and {@link Constants#MAX_BUFFER_SIZE}; each
+ * list holds at most {@link Constants#BUFFER_POOL_MAX_BYTES} worth of buffers, and
+ * anything returned beyond that is left to the garbage collector.
+ */
+public class BufferPool {
+    private static BufferPool sInstance;
+
+    private final SizeClass[] mClasses;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mDrops = new AtomicLong();
+
+    /**
+     * Free buffers of a single size, kept as a simple stack.
+     */
+    private static class SizeClass {
+        final int mSize;
+        final byte[][] mFree;
+        int mCount;
+
+        SizeClass(int size, int capacity) {
+            mSize = size;
+            mFree = new byte[capacity][];
+        }
+    }
+
+    public static synchronized BufferPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new BufferPool();
+        }
+        return sInstance;
+    }
+
+    private BufferPool() {
+        int classes = 0;
+        for (int size = Constants.MIN_BUFFER_SIZE; size <= Constants.MAX_BUFFER_SIZE; size <<= 1) {
+            classes++;
+        }
+        mClasses = new SizeClass[classes];
+        int size = Constants.MIN_BUFFER_SIZE;
+        for (int i = 0; i < classes; i++) {
+            mClasses[i] = new SizeClass(size, Math.max(1, Constants.BUFFER_POOL_MAX_BYTES / size));
+            size <<= 1;
+        }
+    }
+
+    /**
+     * Borrow a buffer of at least the given size, which must be returned through
+     * {@link #release(byte[])} once the caller is done with it.
+     */
+    public byte[] acquire(int size) {
+        final SizeClass sizeClass = sizeClassFor(size);
+        if (sizeClass == null) {
+            mMisses.incrementAndGet();
+            return new byte[size];
+        }
+        synchronized (sizeClass) {
+            if (sizeClass.mCount > 0) {
+                final byte[] buffer = sizeClass.mFree[--sizeClass.mCount];
+                sizeClass.mFree[sizeClass.mCount] = null;
+                mHits.incrementAndGet();
+                return buffer;
+            }
+        }
+        mMisses.incrementAndGet();
+        return new byte[sizeClass.mSize];
+    }
+
+    /**
+     * Return a buffer obtained from {@link #acquire(int)} to the pool.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        final SizeClass sizeClass = sizeClassFor(buffer.length);
+        if (sizeClass != null && sizeClass.mSize == buffer.length) {
+            synchronized (sizeClass) {
+                if (sizeClass.mCount < sizeClass.mFree.length) {
+                    sizeClass.mFree[sizeClass.mCount++] = buffer;
+                    return;
+                }
+            }
+        }
+        mDrops.incrementAndGet();
+    }
+
+    /**
+     * Returns the smallest size class holding the given size, or null if it is larger
+     * than any pooled buffer.
+     */
+    private SizeClass sizeClassFor(int size) {
+        for (SizeClass sizeClass : mClasses) {
+            if (sizeClass.mSize >= size) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+    /** Number of buffers handed out from the pool without allocating. */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /** Number of buffers that had to be allocated because the pool was empty. */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /** Number of returned buffers discarded because the pool was full. */
+    public long getDropCount() {
+        return mDrops.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", drops=" + getDropCount() + "}";
+    }
+}
@@ -0,0 +1,115 @@
+package com.nianing.downloadmanager;
+
+import android.content.Intent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds the {@link DownloadManager#ACTION_DOWNLOADS_CHANGED} broadcasts of
+ * {@link DownloadService}. Only downloads marked dirty since the last broadcast are
+ * looked at, and of those only the ones whose {@link DownloadSnapshot} differs from
+ * the one last sent are included, so the cost of a broadcast follows what changed
+ * rather than how many downloads there are.
+ * <p>
+ * Broadcasts are coalesced to at most one per {@link #setMinInterval minimum interval};
+ * changes made in between are merged into the next one. A reset broadcast carries every
+ * download, for receivers that start listening late. Not thread safe; callers
+ * synchronize.
+ */
+class ChangeFeed {
+    private static volatile long sMinInterval = Constants.MIN_CHANGE_BROADCAST_INTERVAL;
+
+    /** Snapshot last sent per download id. */
+    private final Map<Long, DownloadSnapshot> mSent = new HashMap<Long, DownloadSnapshot>();
+
+    /** Downloads that may have changed since the last broadcast. */
+    private final Set<Long> mDirty = new HashSet<Long>();
+
+    private boolean mResetPending = true;
+    private long mLastPublish = Long.MIN_VALUE;
+
+    /**
+     * Set the shortest time between two broadcasts, in ms; 0 to send one after every
+     * update pass that changed something.
+     */
+    public static void setMinInterval(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Invalid interval: " + millis);
+        }
+        sMinInterval = millis;
+    }
+
+    /** The given download was read, changed or removed. */
+    public void markDirty(long id) {
+        mDirty.add(id);
+    }
+
+    /** Send every download with the next broadcast. */
+    public void requestReset() {
+        mResetPending = true;
+    }
+
+    /**
+     * Returns how long to wait before the next broadcast may be built, 0 if it may be
+     * built now, or -1 if there is nothing to send.
+     */
+    public long getPublishDelay(long now) {
+        if (mDirty.isEmpty() && !mResetPending) {
+            return -1;
+        }
+        final long next = mLastPublish + sMinInterval;
+        return next > now ? next - now : 0;
+    }
+
+    /**
+     * Build the broadcast for everything that changed since the last one.
+     *
+     * @param downloads every download the service knows about, by id
+     * @return the broadcast, or null if no download actually changed
+     */
+    public Intent publish(Map<Long, DownloadInfo> downloads, long now) {
+        final boolean reset = mResetPending;
+        final Set<Long> ids = reset ? new HashSet<Long>(downloads.keySet()) : mDirty;
+        if (reset) {
+            ids.addAll(mSent.keySet());
+        }
+
+        final ArrayList<DownloadSnapshot> changed = new ArrayList<DownloadSnapshot>();
+        final ArrayList<Long> removed = new ArrayList<Long>();
+        for (Long id : ids) {
+            final DownloadInfo info = downloads.get(id);
+            if (info == null) {
+                if (mSent.remove(id) != null) {
+                    removed.add(id);
+                }
+                continue;
+            }
+            final DownloadSnapshot snapshot = new DownloadSnapshot(info);
+            if (reset || !snapshot.equals(mSent.get(id))) {
+                mSent.put(id, snapshot);
+                changed.add(snapshot);
+            }
+        }
+        mDirty.clear();
+        mResetPending = false;
+
+        if (!reset && changed.isEmpty() && removed.isEmpty()) {
+            return null;
+        }
+        mLastPublish = now;
+
+        final long[] removedIds = new long[removed.size()];
+        for (int i = 0; i < removedIds.length; i++) {
+            removedIds[i] = removed.get(i);
+        }
+        final Intent intent = new Intent(DownloadManager.ACTION_DOWNLOADS_CHANGED);
+        intent.putExtra(DownloadManager.EXTRA_DOWNLOADS_RESET, reset);
+        intent.putParcelableArrayListExtra(DownloadManager.EXTRA_CHANGED_DOWNLOADS, changed);
+        intent.putExtra(DownloadManager.EXTRA_REMOVED_DOWNLOAD_IDS, removedIds);
+        return intent;
+    }
+}
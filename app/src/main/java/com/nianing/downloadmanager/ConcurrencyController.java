@@ -0,0 +1,202 @@
+package com.nianing.downloadmanager;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adapts the number of downloads running at once to what the link can carry, using
+ * additive-increase/multiplicative-decrease on the pool size of {@link DownloadService}.
+ * <p>
+ * {@link DownloadThread}s report every chunk they write, and every attempt that ends.
+ * Once per {@link Constants#CONCURRENCY_SAMPLE_INTERVAL} the aggregate goodput and
+ * error rate of the last window are compared with the window before: while downloads
+ * are waiting for a thread and goodput holds up, the limit grows by one; when attempts
+ * fail with network errors, or goodput drops after the last increase, it shrinks by
+ * {@link Constants#CONCURRENCY_DECREASE_FACTOR}. Reports only add to atomic counters,
+ * so the transfer loops never contend on a lock; a timer thread samples them, and only
+ * while any download runs.
+ */
+public class ConcurrencyController {
+    private static ConcurrencyController sInstance;
+
+    /** Error rate in a window above which the link is considered congested. */
+    private static final float MAX_ERROR_RATE = 0.1f;
+
+    /** Goodput drop after an increase that is considered a sign of congestion. */
+    private static final float MIN_GOODPUT_GAIN = 0.9f;
+
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mCompleted = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+
+    private ThreadPoolExecutor mExecutor;
+    private volatile int mLimit = Constants.DEFAULT_CONCURRENCY;
+    private volatile long mGoodput;
+
+    private long mWindowStart = SystemClock.elapsedRealtime();
+    private long mLastGoodput;
+    private boolean mLastWasIncrease;
+
+    private Timer mTimer;
+    /** Samples every window while downloads run, null while none does. */
+    private TimerTask mSampler;
+
+    public static synchronized ConcurrencyController getInstance() {
+        if (sInstance == null) {
+            sInstance = new ConcurrencyController();
+        }
+        return sInstance;
+    }
+
+    private ConcurrencyController() {
+    }
+
+    /**
+     * Let this controller size the given pool, starting at the current limit.
+     */
+    public synchronized void attach(ThreadPoolExecutor executor) {
+        mExecutor = executor;
+        applyLimit(mLimit);
+    }
+
+    /** A download attempt started running. */
+    void onDownloadStarted() {
+        if (mInFlight.incrementAndGet() == 1) {
+            startSampling();
+        }
+    }
+
+    /**
+     * A download attempt stopped running.
+     *
+     * @param failed if it stopped because of a network or server error
+     */
+    void onDownloadFinished(boolean failed) {
+        if (failed) {
+            mFailed.incrementAndGet();
+        } else {
+            mCompleted.incrementAndGet();
+        }
+        if (mInFlight.decrementAndGet() == 0) {
+            stopSampling();
+        }
+    }
+
+    /** Some bytes of a download were written to its destination. */
+    void onBytesTransferred(long bytes) {
+        mBytes.addAndGet(bytes);
+    }
+
+    private synchronized void startSampling() {
+        if (mSampler != null) {
+            return;
+        }
+        // Downloads were idle until now; start afresh
+        mWindowStart = SystemClock.elapsedRealtime();
+        mBytes.set(0);
+        mFailed.set(0);
+        mCompleted.set(0);
+        mLastWasIncrease = false;
+        if (mTimer == null) {
+            mTimer = new Timer("ConcurrencyController", true);
+        }
+        mSampler = new TimerTask() {
+            @Override
+            public void run() {
+                sample();
+            }
+        };
+        mTimer.schedule(mSampler, Constants.CONCURRENCY_SAMPLE_INTERVAL,
+                Constants.CONCURRENCY_SAMPLE_INTERVAL);
+    }
+
+    private synchronized void stopSampling() {
+        // Another download may have started since the last one finished
+        if (mSampler == null || mInFlight.get() > 0) {
+            return;
+        }
+        mSampler.cancel();
+        mSampler = null;
+    }
+
+    private synchronized void sample() {
+        final long now = SystemClock.elapsedRealtime();
+        final long elapsed = now - mWindowStart;
+        if (elapsed <= 0) {
+            return;
+        }
+        mWindowStart = now;
+        sampleLocked(elapsed);
+    }
+
+    private void sampleLocked(long elapsed) {
+        final long goodput = mBytes.getAndSet(0) * 1000 / elapsed;
+        final int failed = mFailed.getAndSet(0);
+        final int attempts = failed + mCompleted.getAndSet(0);
+        final boolean waiting = mExecutor != null && !mExecutor.getQueue().isEmpty();
+
+        int limit = mLimit;
+        final boolean congested = (attempts > 0 && failed > attempts * MAX_ERROR_RATE)
+                || (mLastWasIncrease && goodput < mLastGoodput * MIN_GOODPUT_GAIN);
+        if (congested) {
+            limit = Math.max(Constants.MIN_CONCURRENCY,
+                    (int) (limit * Constants.CONCURRENCY_DECREASE_FACTOR));
+        } else if (waiting) {
+            limit = Math.min(Constants.MAX_CONCURRENCY, limit + 1);
+        }
+
+        mLastWasIncrease = limit > mLimit;
+        mLastGoodput = goodput;
+        mGoodput = goodput;
+        if (limit != mLimit) {
+            if (Constants.LOGV) {
+                Log.v(Constants.TAG, "concurrency " + mLimit + " -> " + limit + ", goodput "
+                        + goodput + " B/s, " + failed + "/" + attempts + " failed");
+            }
+            applyLimit(limit);
+        }
+    }
+
+    private void applyLimit(int limit) {
+        mLimit = limit;
+        if (mExecutor == null) {
+            return;
+        }
+        // The core size may never exceed the maximum, so move them in the right order
+        if (limit > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(limit);
+            mExecutor.setCorePoolSize(limit);
+        } else {
+            mExecutor.setCorePoolSize(limit);
+            mExecutor.setMaximumPoolSize(limit);
+        }
+    }
+
+    /** Number of downloads currently allowed to run at once. */
+    public int getLimit() {
+        return mLimit;
+    }
+
+    /** Number of download attempts currently running. */
+    public int getInFlightCount() {
+        return mInFlight.get();
+    }
+
+    /** Aggregate bytes per second written by all downloads over the last sample window. */
+    public long getGoodput() {
+        return mGoodput;
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyController{limit=" + getLimit() + ", inFlight=" + getInFlightCount()
+                + ", goodput=" + getGoodput() + "}";
+    }
+}
@@ -0,0 +1,77 @@
+package com.nianing.downloadmanager;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what happens to the connection of every request sent by a {@link DownloadThread}.
+ * <p>
+ * The sockets themselves belong to the keep-alive pool inside {@link HttpURLConnection},
+ * which takes a connection back once its response body was read to the end and its stream
+ * closed, and destroys it on {@link HttpURLConnection#disconnect()}. How many connections
+ * that pool keeps per host, and when it evicts them, is up to the platform and the app's
+ * {@code http.maxConnections} and {@code http.keepAliveDuration} settings; whether a
+ * connection is actually reused isn't visible from here. This class only makes sure a
+ * connection whose body wasn't consumed is disconnected rather than left half read, and
+ * counts both outcomes.
+ */
+public class ConnectionStats {
+    private static ConnectionStats sInstance;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mConsumed = new AtomicLong();
+    private final AtomicLong mDiscarded = new AtomicLong();
+
+    public static synchronized ConnectionStats getInstance() {
+        if (sInstance == null) {
+            sInstance = new ConnectionStats();
+        }
+        return sInstance;
+    }
+
+    private ConnectionStats() {
+    }
+
+    /**
+     * A request is about to be sent.
+     */
+    void onRequest() {
+        mRequests.incrementAndGet();
+    }
+
+    /**
+     * Done with the connection of a request.
+     *
+     * @param consumed if the response body was read to the end and its stream closed, so
+     *            the platform may keep the connection alive
+     */
+    void release(HttpURLConnection conn, boolean consumed) {
+        if (consumed) {
+            mConsumed.incrementAndGet();
+            return;
+        }
+        mDiscarded.incrementAndGet();
+        conn.disconnect();
+    }
+
+    /** Requests sent since the process started. */
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    /** Connections whose response body was read to the end and left to the platform. */
+    public long getConsumedCount() {
+        return mConsumed.get();
+    }
+
+    /** Connections closed because their response body wasn't consumed. */
+    public long getDiscardedCount() {
+        return mDiscarded.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionStats{requests=" + mRequests.get() + ", consumed=" + mConsumed.get()
+                + ", discarded=" + mDiscarded.get() + "}";
+    }
+}
@@ -43,6 +43,9 @@ public class Constants {
     /** The column that is used to remember whether the media scanner was invoked */
     public static final String MEDIA_SCANNED = "scanned";
 
+    /** Extra of the intent starting the service, asking for a change broadcast of every download */
+    public static final String EXTRA_RESET_CHANGES = "reset_changes";
+
     /** The intent that gets sent when the service must wake up for a retry */
     public static final String ACTION_RETRY = "android.intent.action.DOWNLOAD_WAKEUP";
 
@@ -117,8 +120,20 @@ public class Constants {
     /** The MIME type of APKs */
     public static final String MIMETYPE_APK = "application/vnd.android.package";
 
-    /** The buffer size used to stream the data */
-    public static final int BUFFER_SIZE = 4096;
+    /** The smallest buffer used to stream the data, used until a speed is measured */
+    public static final int MIN_BUFFER_SIZE = 4096;
+
+    /** The largest buffer used to stream the data on fast links */
+    public static final int MAX_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * How much data, in ms of transfer at the measured speed, the stream buffer should
+     * hold. Its size is adjusted between MIN_BUFFER_SIZE and MAX_BUFFER_SIZE to match.
+     */
+    public static final long BUFFER_FILL_TIME = 50;
+
+    /** The most memory, per buffer size, kept in the shared stream buffer pool */
+    public static final int BUFFER_POOL_MAX_BYTES = 1024 * 1024;
 
     /** The minimum amount of progress that has to be done before the progress bar gets updated */
     public static final int MIN_PROGRESS_STEP = 4096;
@@ -126,6 +141,63 @@ public class Constants {
     /** The minimum amount of time that has to elapse before the progress bar gets updated, in ms */
     public static final long MIN_PROGRESS_TIME = 1500;
 
+    /**
+     * The default time progress may stay in memory before it is written to the database,
+     * in ms. See {@link ProgressJournal}.
+     */
+    public static final long PROGRESS_FLUSH_INTERVAL = 3000;
+
+    /**
+     * The default shortest time between two download change broadcasts, in ms. See
+     * {@link ChangeFeed}.
+     */
+    public static final long MIN_CHANGE_BROADCAST_INTERVAL = 500;
+
+    /** The most download change events waiting for dispatch to observers */
+    public static final int EVENT_BUFFER_SIZE = 1024;
+
+    /** The most downloads {@link DownloadMetrics} keeps a timing breakdown of */
+    public static final int MAX_TIMED_DOWNLOADS = 256;
+
+    /** How many recent queue depths of the download executor {@link ExecutorMonitor} keeps */
+    public static final int EXECUTOR_HISTORY_SIZE = 64;
+
+    /** How much transfer, in ms at the limited rate, a bandwidth limit lets through in a burst */
+    public static final long BANDWIDTH_BURST_TIME = 1000;
+
+    /** The longest a throttled download sleeps before checking whether it was paused, in ms */
+    public static final long MAX_THROTTLE_SLEEP = 500;
+
+    /** The smallest byte range a segmented download is split into */
+    public static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    /** The maximum number of parallel connections used by one segmented download */
+    public static final int MAX_SEGMENTS = 8;
+
+    /** The number of downloads run at once until {@link ConcurrencyController} adapts it */
+    public static final int DEFAULT_CONCURRENCY = 5;
+
+    /** The fewest downloads {@link ConcurrencyController} lets run at once */
+    public static final int MIN_CONCURRENCY = 1;
+
+    /** The most downloads {@link ConcurrencyController} lets run at once */
+    public static final int MAX_CONCURRENCY = 16;
+
+    /** How long {@link ConcurrencyController} measures goodput before adjusting, in ms */
+    public static final long CONCURRENCY_SAMPLE_INTERVAL = 5000;
+
+    /** The factor {@link ConcurrencyController} shrinks the concurrency by on congestion */
+    public static final float CONCURRENCY_DECREASE_FACTOR = 0.5f;
+
+    /** The default maximum number of downloads running at once against a single host */
+    public static final int DEFAULT_MAX_DOWNLOADS_PER_HOST = 3;
+
+    /** The default maximum number of downloads running at once for a single package, 0 for none */
+    public static final int DEFAULT_MAX_DOWNLOADS_PER_PACKAGE = 0;
+
+    /** The most bytes read from a redirect body to free its connection for reuse */
+    public static final int MAX_DRAIN_BYTES = 4096;
+
     /** The maximum number of rows in the database (FIFO) */
     public static final int MAX_DOWNLOADS = 1000;
 
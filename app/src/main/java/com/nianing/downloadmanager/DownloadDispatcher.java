@@ -0,0 +1,256 @@
+package com.nianing.downloadmanager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Admission control for {@link DownloadService}: limits how many downloads may run at
+ * once against a single host, and for a single package, so that a large batch from one
+ * origin can't occupy every thread of the pool.
+ * <p>
+ * A download that is ready but over a limit is held back here, and once slots free up
+ * held downloads are released round-robin across hosts, most urgent first within a
+ * host. Callers run {@link #dispatch()} after every pass that may have held downloads.
+ * A segmented download takes one more slot of its host for every range it fetches in
+ * parallel beyond the first, as long as the host has any free and no download of that
+ * host is held; ranges it can't get a slot for are fetched one after another by its own
+ * thread. Segmented downloads take these extra slots from their own threads, so every
+ * method is synchronized.
+ */
+class DownloadDispatcher {
+
+    private static volatile int sMaxPerHost = Constants.DEFAULT_MAX_DOWNLOADS_PER_HOST;
+    private static volatile int sMaxPerPackage = Constants.DEFAULT_MAX_DOWNLOADS_PER_PACKAGE;
+
+    /**
+     * A download waiting for a slot, ordered by priority, deadline and then id.
+     */
+    private static class Held implements Comparable<Held> {
+        final long mId;
+        final String mHost;
+        final String mPackage;
+        final int mPriority;
+        final long mDeadline;
+
+        Held(DownloadInfo info, String host) {
+            mId = info.mId;
+            mHost = host;
+            mPackage = info.mPackage;
+            mPriority = info.mPriority;
+            mDeadline = info.mDeadline > 0 ? info.mDeadline : Long.MAX_VALUE;
+        }
+
+        @Override
+        public int compareTo(Held another) {
+            if (mPriority != another.mPriority) {
+                return mPriority > another.mPriority ? -1 : 1;
+            }
+            if (mDeadline != another.mDeadline) {
+                return mDeadline < another.mDeadline ? -1 : 1;
+            }
+            return mId < another.mId ? -1 : (mId == another.mId ? 0 : 1);
+        }
+    }
+
+    /** Host and package of every download holding a slot, by id. */
+    private final Map<Long, String[]> mActive = new HashMap<Long, String[]>();
+    private final Map<String, Integer> mActivePerHost = new HashMap<String, Integer>();
+    private final Map<String, Integer> mActivePerPackage = new HashMap<String, Integer>();
+    /** Extra host slots taken by the parallel ranges of segmented downloads, by id. */
+    private final Map<Long, Integer> mExtra = new HashMap<Long, Integer>();
+
+    /** Held downloads by id. */
+    private final Map<Long, Held> mHeld = new HashMap<Long, Held>();
+
+    /** Held downloads per host, hosts in the order they get their next turn. */
+    private final LinkedHashMap<String, TreeSet<Held>> mHeldPerHost =
+            new LinkedHashMap<String, TreeSet<Held>>();
+
+    /**
+     * Set how many downloads may run at once against a single host; 0 for no limit.
+     */
+    public static void setMaxPerHost(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("Invalid limit: " + max);
+        }
+        sMaxPerHost = max;
+    }
+
+    /**
+     * Set how many downloads may run at once for a single package; 0 for no limit.
+     */
+    public static void setMaxPerPackage(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("Invalid limit: " + max);
+        }
+        sMaxPerPackage = max;
+    }
+
+    /**
+     * Take a slot for the given ready download, or hold it back if its host or package
+     * is at its limit. While other downloads of its host are held, it is held behind
+     * them too, so that {@link #dispatch()} hands out the next slot by priority rather
+     * than to whichever download happened to be looked at first. A download that
+     * already has a slot keeps it.
+     *
+     * @return if the download may be started now
+     */
+    public synchronized boolean tryAcquire(DownloadInfo info, String host) {
+        if (mActive.containsKey(info.mId)) {
+            return true;
+        }
+        if (!mHeldPerHost.containsKey(host) && hasCapacity(host, info.mPackage)) {
+            removeHeld(info.mId);
+            acquire(info.mId, host, info.mPackage);
+            return true;
+        }
+        if (!mHeld.containsKey(info.mId)) {
+            final Held held = new Held(info, host);
+            mHeld.put(held.mId, held);
+            TreeSet<Held> queue = mHeldPerHost.get(host);
+            if (queue == null) {
+                queue = new TreeSet<Held>();
+                mHeldPerHost.put(host, queue);
+            }
+            queue.add(held);
+        }
+        return false;
+    }
+
+    /**
+     * Give up the slot of the given download, or stop holding it.
+     */
+    public synchronized void release(long id) {
+        removeHeld(id);
+        final String[] key = mActive.remove(id);
+        if (key != null) {
+            decrement(mActivePerHost, key[0]);
+            decrement(mActivePerPackage, key[1]);
+            final Integer extra = mExtra.remove(id);
+            for (int i = 0; extra != null && i < extra; i++) {
+                decrement(mActivePerHost, key[0]);
+            }
+        }
+    }
+
+    /**
+     * Take another slot of its host for a download that holds a slot already, to fetch
+     * one more of its ranges in parallel.
+     *
+     * @return if the host had a slot free that no held download is waiting for
+     */
+    public synchronized boolean tryAcquireExtra(long id) {
+        final String[] key = mActive.get(id);
+        if (key == null || mHeldPerHost.containsKey(key[0]) || !hasCapacity(key[0], null)) {
+            return false;
+        }
+        mActivePerHost.put(key[0], count(mActivePerHost, key[0]) + 1);
+        final Integer extra = mExtra.get(id);
+        mExtra.put(id, extra != null ? extra + 1 : 1);
+        return true;
+    }
+
+    /**
+     * Give back a slot taken with {@link #tryAcquireExtra(long)}.
+     */
+    public synchronized void releaseExtra(long id) {
+        final Integer extra = mExtra.get(id);
+        if (extra == null) {
+            // Released along with the download already
+            return;
+        }
+        if (extra > 1) {
+            mExtra.put(id, extra - 1);
+        } else {
+            mExtra.remove(id);
+        }
+        decrement(mActivePerHost, mActive.get(id)[0]);
+    }
+
+    /**
+     * Hand out every slot that became free to held downloads, taking one download per
+     * host in turn. The returned downloads already hold their slot.
+     */
+    public synchronized List<Long> dispatch() {
+        final List<Long> dispatched = new ArrayList<Long>();
+        boolean progress = true;
+        while (progress && !mHeldPerHost.isEmpty()) {
+            progress = false;
+            final List<String> hosts = new ArrayList<String>(mHeldPerHost.keySet());
+            for (String host : hosts) {
+                final TreeSet<Held> queue = mHeldPerHost.get(host);
+                if (!hasCapacity(host, null)) {
+                    continue;
+                }
+                final Iterator<Held> it = queue.iterator();
+                while (it.hasNext()) {
+                    final Held held = it.next();
+                    if (hasCapacity(host, held.mPackage)) {
+                        it.remove();
+                        mHeld.remove(held.mId);
+                        acquire(held.mId, host, held.mPackage);
+                        dispatched.add(held.mId);
+                        progress = true;
+                        break;
+                    }
+                }
+                // This host had its turn, move it to the back of the line
+                mHeldPerHost.remove(host);
+                if (!queue.isEmpty()) {
+                    mHeldPerHost.put(host, queue);
+                }
+            }
+        }
+        return dispatched;
+    }
+
+    public synchronized int getHeldCount() {
+        return mHeld.size();
+    }
+
+    private boolean hasCapacity(String host, String packageName) {
+        final int maxPerHost = sMaxPerHost;
+        if (maxPerHost > 0 && count(mActivePerHost, host) >= maxPerHost) {
+            return false;
+        }
+        final int maxPerPackage = sMaxPerPackage;
+        return packageName == null || maxPerPackage <= 0
+                || count(mActivePerPackage, packageName) < maxPerPackage;
+    }
+
+    private void acquire(long id, String host, String packageName) {
+        mActive.put(id, new String[] { host, packageName });
+        mActivePerHost.put(host, count(mActivePerHost, host) + 1);
+        mActivePerPackage.put(packageName, count(mActivePerPackage, packageName) + 1);
+    }
+
+    private void removeHeld(long id) {
+        final Held held = mHeld.remove(id);
+        if (held != null) {
+            final TreeSet<Held> queue = mHeldPerHost.get(held.mHost);
+            queue.remove(held);
+            if (queue.isEmpty()) {
+                mHeldPerHost.remove(held.mHost);
+            }
+        }
+    }
+
+    private static int count(Map<String, Integer> counts, String key) {
+        final Integer count = counts.get(key);
+        return count != null ? count : 0;
+    }
+
+    private static void decrement(Map<String, Integer> counts, String key) {
+        final int count = count(counts, key) - 1;
+        if (count > 0) {
+            counts.put(key, count);
+        } else {
+            counts.remove(key);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.nianing.downloadmanager;
+
+import android.content.ContentValues;
+
+import java.util.Map;
+
+/**
+ * Describes a change {@link DownloadProvider} made to a single download, so that
+ * {@link DownloadObserver}s can react to just that download instead of rescanning
+ * the whole table. Besides the kind of change, an event carries the columns that were
+ * written, the status before and after, and the byte counts, as far as the code making
+ * the change knew them.
+ */
+public class DownloadEvent {
+    /** A download was inserted. */
+    public static final int TYPE_INSERTED = 1;
+
+    /** The status of a download changed. */
+    public static final int TYPE_STATUS_CHANGED = 2;
+
+    /** The control (run/pause) of a download changed. */
+    public static final int TYPE_CONTROL_CHANGED = 3;
+
+    /** A download was marked deleted, or its row removed. */
+    public static final int TYPE_DELETED = 4;
+
+    /** Only the byte counts of a download changed. */
+    public static final int TYPE_PROGRESS = 5;
+
+    /** Some other column of a download changed. */
+    public static final int TYPE_UPDATED = 6;
+
+    /** Id used when the affected downloads are unknown; listeners should rescan. */
+    public static final long ID_UNKNOWN = -1;
+
+    /** Status used when the status before or after the change is unknown. */
+    public static final int STATUS_UNKNOWN = -1;
+
+    private static final String[] NO_COLUMNS = new String[0];
+
+    public final int mType;
+    public final long mId;
+
+    /** The columns written, empty if unknown. */
+    public final String[] mColumns;
+
+    /** The status before the change, or {@link #STATUS_UNKNOWN}. */
+    public final int mOldStatus;
+
+    /** The status after the change, or {@link #STATUS_UNKNOWN}. */
+    public final int mNewStatus;
+
+    /** The bytes downloaded after the change, or -1 if unknown. */
+    public final long mCurrentBytes;
+
+    /** The total size after the change, or -1 if unknown. */
+    public final long mTotalBytes;
+
+    public DownloadEvent(int type, long id) {
+        this(type, id, NO_COLUMNS, STATUS_UNKNOWN, STATUS_UNKNOWN, -1, -1);
+    }
+
+    public DownloadEvent(int type, long id, String[] columns, int oldStatus, int newStatus,
+            long currentBytes, long totalBytes) {
+        mType = type;
+        mId = id;
+        mColumns = columns;
+        mOldStatus = oldStatus;
+        mNewStatus = newStatus;
+        mCurrentBytes = currentBytes;
+        mTotalBytes = totalBytes;
+    }
+
+    /**
+     * Build the event for writing the given values, taking the new status and byte
+     * counts from them.
+     */
+    static DownloadEvent fromValues(int type, long id, ContentValues values, int oldStatus) {
+        final Integer status = values.getAsInteger(Downloads.Columns.COLUMN_STATUS);
+        final Long currentBytes = values.getAsLong(Downloads.Columns.COLUMN_CURRENT_BYTES);
+        final Long totalBytes = values.getAsLong(Downloads.Columns.COLUMN_TOTAL_BYTES);
+        return new DownloadEvent(type, id, getColumns(values), oldStatus,
+                status != null ? status : STATUS_UNKNOWN,
+                currentBytes != null ? currentBytes : -1,
+                totalBytes != null ? totalBytes : -1);
+    }
+
+    static String[] getColumns(ContentValues values) {
+        final String[] columns = new String[values.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            columns[i++] = entry.getKey();
+        }
+        return columns;
+    }
+
+    /**
+     * Returns if the given column was written.
+     */
+    public boolean hasColumn(String column) {
+        for (String c : mColumns) {
+            if (c.equals(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns if the download was, or now is, in one of the given status classes, a
+     * mask of {@link DownloadManager#STATUS_PENDING} and the like. Events that can't
+     * tell, because neither status is known or the download isn't, always match.
+     */
+    public boolean matchesStatus(int statusClasses) {
+        if (mId == ID_UNKNOWN
+                || (mOldStatus == STATUS_UNKNOWN && mNewStatus == STATUS_UNKNOWN)) {
+            return true;
+        }
+        return (mOldStatus != STATUS_UNKNOWN
+                        && (DownloadManager.translateStatus(mOldStatus) & statusClasses) != 0)
+                || (mNewStatus != STATUS_UNKNOWN
+                        && (DownloadManager.translateStatus(mNewStatus) & statusClasses) != 0);
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadEvent{type=" + mType + ", id=" + mId + ", status=" + mOldStatus
+                + "->" + mNewStatus + ", bytes=" + mCurrentBytes + "/" + mTotalBytes + "}";
+    }
+}
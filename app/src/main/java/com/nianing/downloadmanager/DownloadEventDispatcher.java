@@ -0,0 +1,210 @@
+package com.nianing.downloadmanager;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Delivers {@link DownloadEvent}s to {@link DownloadObserver}s on a thread of its own, so
+ * that a slow observer never holds up the {@link DownloadThread} or caller that made the
+ * change.
+ * <p>
+ * Events are posted into a fixed-size ring buffer without taking any lock: producers
+ * claim a slot by advancing the tail with a compare-and-set and then publish the event
+ * into it, and the single dispatch thread drains everything published so far as one
+ * batch. The dispatch thread is only woken once per batch. If the buffer is full the
+ * event is dropped rather than waiting for space, and observers get an event with
+ * {@link DownloadEvent#ID_UNKNOWN} after the batch, telling them to rescan.
+ * <p>
+ * Each observer gets the events of a batch that match its subscription, in the order
+ * they were posted: all of them, those of a single download, or those of downloads in
+ * some status classes.
+ */
+class DownloadEventDispatcher {
+    private static final String TAG = "DownloadEventDispatcher";
+
+    private static final int MSG_DISPATCH = 1;
+
+    private static final long ALL_DOWNLOADS = DownloadEvent.ID_UNKNOWN;
+    private static final int ALL_STATUSES = 0;
+
+    private static class Subscription {
+        final DownloadObserver mObserver;
+        final long mId;
+        final int mStatusClasses;
+
+        Subscription(DownloadObserver observer, long id, int statusClasses) {
+            mObserver = observer;
+            mId = id;
+            mStatusClasses = statusClasses;
+        }
+
+        boolean matches(DownloadEvent event) {
+            if (mId != ALL_DOWNLOADS && event.mId != mId && event.mId != DownloadEvent.ID_UNKNOWN) {
+                return false;
+            }
+            return mStatusClasses == ALL_STATUSES || event.matchesStatus(mStatusClasses);
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions =
+            new CopyOnWriteArrayList<Subscription>();
+
+    private final AtomicReferenceArray<DownloadEvent> mSlots;
+    private final int mMask;
+
+    /** Next slot to claim; only ever advanced by producers. */
+    private final AtomicLong mTail = new AtomicLong();
+    /** Next slot to drain; only ever advanced by the dispatch thread. */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /** Whether the dispatch thread has been woken for the events posted so far. */
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    /** Whether events were dropped since the last batch. */
+    private final AtomicBoolean mOverflow = new AtomicBoolean();
+
+    private final Handler mHandler;
+
+    /**
+     * @param capacity the most events waiting for dispatch, rounded up to a power of two
+     */
+    public DownloadEventDispatcher(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mSlots = new AtomicReferenceArray<DownloadEvent>(size);
+        mMask = size - 1;
+
+        final HandlerThread thread = new HandlerThread(Constants.TAG + "-Events",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper(), mDispatchCallback);
+    }
+
+    /** Deliver every event to the given observer. */
+    public void register(DownloadObserver observer) {
+        mSubscriptions.add(new Subscription(observer, ALL_DOWNLOADS, ALL_STATUSES));
+    }
+
+    /** Deliver the events of a single download to the given observer. */
+    public void registerForDownload(DownloadObserver observer, long id) {
+        mSubscriptions.add(new Subscription(observer, id, ALL_STATUSES));
+    }
+
+    /**
+     * Deliver the events of downloads that were, or now are, in one of the given status
+     * classes to the given observer.
+     */
+    public void registerForStatus(DownloadObserver observer, int statusClasses) {
+        if (statusClasses == ALL_STATUSES) {
+            throw new IllegalArgumentException("No status classes given");
+        }
+        mSubscriptions.add(new Subscription(observer, ALL_DOWNLOADS, statusClasses));
+    }
+
+    /** Remove every subscription of the given observer. */
+    public void unregister(DownloadObserver observer) {
+        final List<Subscription> removed = new ArrayList<Subscription>();
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mObserver == observer) {
+                removed.add(subscription);
+            }
+        }
+        mSubscriptions.removeAll(removed);
+    }
+
+    /**
+     * Queue an event for dispatch. Never blocks.
+     */
+    public void post(DownloadEvent event) {
+        if (mSubscriptions.isEmpty()) {
+            return;
+        }
+        final int capacity = mMask + 1;
+        long tail;
+        do {
+            tail = mTail.get();
+            if (tail - mHead.get() >= capacity) {
+                mOverflow.set(true);
+                wakeUp();
+                return;
+            }
+        } while (!mTail.compareAndSet(tail, tail + 1));
+        mSlots.set((int) tail & mMask, event);
+        wakeUp();
+    }
+
+    private void wakeUp() {
+        if (mScheduled.compareAndSet(false, true)) {
+            mHandler.sendEmptyMessage(MSG_DISPATCH);
+        }
+    }
+
+    private final Handler.Callback mDispatchCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            // Clear first, so that anything posted from now on wakes us up again
+            mScheduled.set(false);
+            final List<DownloadEvent> batch = drain();
+            if (mOverflow.getAndSet(false)) {
+                batch.add(new DownloadEvent(DownloadEvent.TYPE_UPDATED, DownloadEvent.ID_UNKNOWN));
+            }
+            if (!batch.isEmpty()) {
+                dispatch(Collections.unmodifiableList(batch));
+            }
+            return true;
+        }
+    };
+
+    private List<DownloadEvent> drain() {
+        final List<DownloadEvent> batch = new ArrayList<DownloadEvent>();
+        long head = mHead.get();
+        while (true) {
+            final int index = (int) head & mMask;
+            final DownloadEvent event = mSlots.get(index);
+            if (event == null) {
+                // Either empty, or claimed but not published yet; its producer will
+                // wake us up again once it is
+                break;
+            }
+            mSlots.set(index, null);
+            batch.add(event);
+            head++;
+            mHead.set(head);
+        }
+        return batch;
+    }
+
+    private void dispatch(List<DownloadEvent> batch) {
+        for (Subscription subscription : mSubscriptions) {
+            List<DownloadEvent> events = batch;
+            if (subscription.mId != ALL_DOWNLOADS || subscription.mStatusClasses != ALL_STATUSES) {
+                events = new ArrayList<DownloadEvent>();
+                for (DownloadEvent event : batch) {
+                    if (subscription.matches(event)) {
+                        events.add(event);
+                    }
+                }
+                if (events.isEmpty()) {
+                    continue;
+                }
+            }
+            try {
+                subscription.mObserver.onChange(events);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "observer " + subscription.mObserver + " failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.nianing.downloadmanager;
+
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread pool running {@link DownloadThread}s, whose queue hands out the most urgent
+ * waiting download first instead of the oldest one: higher
+ * {@link Downloads.Columns#COLUMN_PRIORITY} first, then earlier
+ * {@link Downloads.Columns#COLUMN_DEADLINE}, then in submission order.
+ * <p>
+ * When preemption is enabled and a download has to wait because every thread is
+ * busy, the running download with the lowest priority below it is asked to stop at
+ * its next resumable boundary; it goes back to {@link Downloads.Columns#STATUS_PENDING}
+ * and is queued again behind the more urgent work.
+ * <p>
+ * Submissions, task starts and finishes are reported to {@link ExecutorMonitor}.
+ */
+public class DownloadExecutor extends ThreadPoolExecutor {
+
+    private static volatile boolean sPreemptionEnabled = false;
+
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    /** Tasks currently running on a pool thread. */
+    private final Set<DownloadTask> mRunning = new HashSet<DownloadTask>();
+
+    /**
+     * A submitted {@link DownloadThread}, or a part of its work such as a byte range,
+     * ordered by urgency in the pool's queue.
+     */
+    public static class DownloadTask extends FutureTask<Void> implements Comparable<DownloadTask> {
+        /** The download, or null for a part of one, which can't be preempted. */
+        private final DownloadThread mThread;
+        private final long mId;
+        private final int mPriority;
+        private final long mDeadline;
+        private final long mSequence;
+
+        /** When the task was handed to the executor and when it started, in microseconds. */
+        private long mSubmitTime;
+        private long mStartTime;
+        /** Set once a pool thread picked the task up. */
+        private volatile boolean mStarted;
+
+        public DownloadTask(DownloadThread thread, DownloadInfo info) {
+            this(thread, thread, info);
+        }
+
+        /**
+         * A task doing part of the work of the given download, as urgent as the download.
+         */
+        public DownloadTask(Runnable part, DownloadInfo info) {
+            this(part, null, info.mId, info.mPriority, info.mDeadline);
+        }
+
+        private DownloadTask(Runnable runnable, DownloadThread thread, DownloadInfo info) {
+            this(runnable, thread, info.mId, info.mPriority, info.mDeadline);
+        }
+
+        /**
+         * Any other work handed to the pool, queued in submission order among downloads
+         * of normal priority without a deadline.
+         */
+        private DownloadTask(Runnable runnable) {
+            this(runnable, null, DownloadEvent.ID_UNKNOWN,
+                    DownloadManager.Request.PRIORITY_NORMAL, 0);
+        }
+
+        private DownloadTask(Runnable runnable, DownloadThread thread, long id, int priority,
+                long deadline) {
+            super(runnable, null);
+            mThread = thread;
+            mId = id;
+            mPriority = priority;
+            mDeadline = deadline;
+            mSequence = sSequence.getAndIncrement();
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        @Override
+        public int compareTo(DownloadTask another) {
+            if (mPriority != another.mPriority) {
+                return mPriority > another.mPriority ? -1 : 1;
+            }
+            // Downloads without a deadline go after those with one
+            final long deadline = mDeadline > 0 ? mDeadline : Long.MAX_VALUE;
+            final long anotherDeadline = another.mDeadline > 0 ? another.mDeadline : Long.MAX_VALUE;
+            if (deadline != anotherDeadline) {
+                return deadline < anotherDeadline ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+
+    public DownloadExecutor(int poolSize) {
+        super(poolSize, poolSize, 10, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+        final RejectedExecutionHandler policy = getRejectedExecutionHandler();
+        setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                ExecutorMonitor.getInstance().onRejected();
+                policy.rejectedExecution(r, executor);
+            }
+        });
+    }
+
+    /**
+     * Set whether running downloads may be stopped to make room for more urgent ones.
+     */
+    public static void setPreemptionEnabled(boolean enabled) {
+        sPreemptionEnabled = enabled;
+    }
+
+    public static boolean isPreemptionEnabled() {
+        return sPreemptionEnabled;
+    }
+
+    /**
+     * Queue the given task by urgency. Anything but a {@link DownloadTask} is wrapped in
+     * one first, since the queue can only order those.
+     */
+    @Override
+    public void execute(Runnable command) {
+        final DownloadTask task = command instanceof DownloadTask
+                ? (DownloadTask) command : new DownloadTask(command);
+        task.mSubmitTime = DownloadMetrics.now();
+        super.execute(task);
+        ExecutorMonitor.getInstance().onSubmitted(getQueue().size(), getMaximumPoolSize());
+        // Only make room when every thread is running a task and this one is still
+        // waiting; an idle thread may have taken it in the meantime
+        if (sPreemptionEnabled && !task.mStarted && getActiveCount() >= getMaximumPoolSize()) {
+            preemptFor(task);
+        }
+    }
+
+    /**
+     * Ask the least urgent running download with a lower priority than the given
+     * task to make room for it, if there is one.
+     */
+    private void preemptFor(DownloadTask task) {
+        if (task.mThread == null) {
+            // Extra ranges of a download make do with the threads that are free
+            return;
+        }
+        DownloadTask victim = null;
+        synchronized (mRunning) {
+            for (DownloadTask running : mRunning) {
+                if (running.mThread != null && running.mPriority < task.mPriority
+                        && !running.mThread.isPreemptRequested()
+                        && (victim == null || running.compareTo(victim) > 0)) {
+                    victim = running;
+                }
+            }
+        }
+        if (victim != null) {
+            if (Constants.LOGV) {
+                Log.v(Constants.TAG, "preempting download " + victim.mId + " for " + task.mId);
+            }
+            victim.mThread.preempt();
+        }
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        if (r instanceof DownloadTask) {
+            final DownloadTask task = (DownloadTask) r;
+            task.mStarted = true;
+            synchronized (mRunning) {
+                mRunning.add(task);
+            }
+            task.mStartTime = DownloadMetrics.now();
+            ExecutorMonitor.getInstance().onStarted(t, task.mStartTime - task.mSubmitTime,
+                    getQueue().size(), getMaximumPoolSize());
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        if (r instanceof DownloadTask) {
+            final DownloadTask task = (DownloadTask) r;
+            synchronized (mRunning) {
+                mRunning.remove(task);
+            }
+            ExecutorMonitor.getInstance().onFinished(Thread.currentThread(),
+                    DownloadMetrics.now() - task.mStartTime, getQueue().size(),
+                    getMaximumPoolSize());
+            if (task.mThread != null && task.mThread.isPreemptRequested()) {
+                onTaskPreempted(task.mId);
+            }
+        }
+    }
+
+    /**
+     * Called once a download asked to stop for more urgent work has left its thread,
+     * so that it can be queued again.
+     */
+    protected void onTaskPreempted(long id) {
+    }
+}
@@ -15,6 +15,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
@@ -64,8 +65,14 @@ public class DownloadInfo{
             info.mAllowedNetworkTypes = getInt(Downloads.Columns.COLUMN_ALLOWED_NETWORK_TYPES);
             info.mTitle = getString(Downloads.Columns.COLUMN_TITLE);
             info.mDescription = getString(Downloads.Columns.COLUMN_DESCRIPTION);
-
-            synchronized (this) {
+            info.mSegmentCount = getInt(Downloads.Columns.COLUMN_SEGMENT_COUNT);
+            info.mPriority = getInt(Downloads.Columns.COLUMN_PRIORITY);
+            info.mDeadline = getLong(Downloads.Columns.COLUMN_DEADLINE);
+            info.mDigestAlgorithm = getString(Downloads.Columns.COLUMN_DIGEST_ALGORITHM);
+            info.mExpectedDigest = getString(Downloads.Columns.COLUMN_EXPECTED_DIGEST);
+            info.mDigestState = getString(Downloads.Columns.COLUMN_DIGEST_STATE);
+
+            synchronized (info) {
                 info.mControl = getInt(Downloads.Columns.COLUMN_CONTROL);
             }
         }
@@ -181,13 +188,19 @@ public class DownloadInfo{
     public int mAllowedNetworkTypes;
     public String mTitle;
     public String mDescription;
+    public int mSegmentCount;
+    public int mPriority;
+    public long mDeadline;
+    public String mDigestAlgorithm;
+    public String mExpectedDigest;
+    public String mDigestState;
 
     public int mFuzz;
     private List<Pair<String, String>> mRequestHeaders = new ArrayList<Pair<String, String>>();
 
     /**
      * Result of last {@link DownloadThread} started by
-     * {@link #startDownloadIfReady(java.util.concurrent.ExecutorService)}.
+     * {@link #startDownloadIfReady}.
      */
     private Future<?> mSubmittedTask;
 
@@ -209,6 +222,52 @@ public class DownloadInfo{
         return Collections.unmodifiableList(mRequestHeaders);
     }
 
+    /**
+     * Apply the given column values, as written to {@link DownloadProvider}, to this info.
+     * Columns that aren't mirrored in memory are ignored.
+     */
+    void applyValues(ContentValues values) {
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            final String column = entry.getKey();
+            final Object value = entry.getValue();
+            if (Columns._DATA.equals(column)) {
+                mFileName = emptyToNull(value);
+            } else if (Columns.COLUMN_URI.equals(column)) {
+                mUri = emptyToNull(value);
+            } else if (Constants.ETAG.equals(column)) {
+                mETag = emptyToNull(value);
+            } else if (Columns.COLUMN_TITLE.equals(column)) {
+                mTitle = emptyToNull(value);
+            } else if (Columns.COLUMN_DIGEST_STATE.equals(column)) {
+                mDigestState = emptyToNull(value);
+            } else if (Columns.COLUMN_DELETED.equals(column)) {
+                mDeleted = Boolean.TRUE.equals(value)
+                        || (value instanceof Number && ((Number) value).intValue() == 1);
+            } else if (value instanceof Number) {
+                final Number number = (Number) value;
+                if (Columns.COLUMN_STATUS.equals(column)) {
+                    mStatus = number.intValue();
+                } else if (Columns.COLUMN_CONTROL.equals(column)) {
+                    mControl = number.intValue();
+                } else if (Columns.COLUMN_CURRENT_BYTES.equals(column)) {
+                    mCurrentBytes = number.longValue();
+                } else if (Columns.COLUMN_TOTAL_BYTES.equals(column)) {
+                    mTotalBytes = number.longValue();
+                } else if (Columns.COLUMN_LAST_MODIFICATION.equals(column)) {
+                    mLastMod = number.longValue();
+                } else if (Columns.COLUMN_FAILED_CONNECTIONS.equals(column)) {
+                    mNumFailed = number.intValue();
+                } else if (Constants.RETRY_AFTER_X_REDIRECT_COUNT.equals(column)) {
+                    mRetryAfter = number.intValue() & 0xfffffff;
+                }
+            }
+        }
+    }
+
+    private static String emptyToNull(Object value) {
+        return (value == null || TextUtils.isEmpty(value.toString())) ? null : value.toString();
+    }
+
     /**
      * Returns the time when a download should be restarted.
      */
@@ -308,27 +367,42 @@ public class DownloadInfo{
         }
     }
 
+    /**
+     * Returns if this download is ready to start, and isn't already pending or
+     * executing, i.e. if {@link #startDownloadIfReady} would submit a new task.
+     */
+    public boolean isReadyToStart() {
+        synchronized (this) {
+            final boolean isActive = mSubmittedTask != null && !mSubmittedTask.isDone();
+            return !isActive && isReadyToDownload();
+        }
+    }
+
     /**
      * If download is ready to start, and isn't already pending or executing,
      * create a {@link DownloadThread} and enqueue it into given
-     * {@link java.util.concurrent.Executor}.
+     * {@link java.util.concurrent.Executor}, ordered by its priority and deadline
+     * when that is a {@link DownloadExecutor}. The parallel ranges of a segmented
+     * download run on the same executor, under the given dispatcher's host limits.
      *
+     * @param dispatcher admission control the download holds a slot of, or null
      * @return If actively downloading.
      */
-    public boolean startDownloadIfReady(ExecutorService executor) {
+    public boolean startDownloadIfReady(ExecutorService executor, DownloadDispatcher dispatcher) {
         synchronized (this) {
             final boolean isReady = isReadyToDownload();
             final boolean isActive = mSubmittedTask != null && !mSubmittedTask.isDone();
             if (isReady && !isActive) {
                 if (mStatus != Columns.STATUS_RUNNING) {
-                    mStatus = Columns.STATUS_RUNNING;
-                    ContentValues values = new ContentValues();
-                    values.put(Columns.COLUMN_STATUS, mStatus);
-                    mDownloadProvider.update(mId, values, null, null);
+                    mDownloadProvider.getDownloadStore().updateStatus(this, Columns.STATUS_RUNNING);
                 }
 
                 mTask = new DownloadThread(mContext, mSystemFacade,this,mDownloadProvider);
-                mSubmittedTask = executor.submit(mTask);
+                mTask.setSegmentExecutor(executor, dispatcher);
+                final DownloadExecutor.DownloadTask task = new DownloadExecutor.DownloadTask(mTask, this);
+                DownloadMetrics.getInstance().onQueued(mId);
+                executor.execute(task);
+                mSubmittedTask = task;
             }
             return isReady;
         }
@@ -360,15 +434,6 @@ public class DownloadInfo{
      * Query and return status of requested download.
      */
     public static int queryDownloadStatus(DownloadProvider downloadProvider,long id) {
-        final Cursor cursor = downloadProvider.query(id,new String[] { Downloads.Columns.COLUMN_STATUS }, null, null, null);
-        try {
-            if (cursor.moveToFirst()) {
-                return cursor.getInt(0);
-            } else {
-                return Downloads.Columns.STATUS_PENDING;
-            }
-        } finally {
-            cursor.close();
-        }
+        return downloadProvider.queryStatus(id, Downloads.Columns.STATUS_PENDING);
     }
 }
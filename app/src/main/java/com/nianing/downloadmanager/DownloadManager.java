@@ -2,9 +2,11 @@ package com.nianing.downloadmanager;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
 import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.net.Uri;
+import android.os.Handler;
 import android.text.TextUtils;
 import android.util.Pair;
 
@@ -196,6 +198,12 @@ public class DownloadManager {
      */
     public final static int ERROR_BLOCKED = 1010;
 
+    /**
+     * Value of {@link #COLUMN_REASON} when the downloaded file didn't match the digest set
+     * with {@link Request#setExpectedDigest(String, String)}.
+     */
+    public final static int ERROR_CHECKSUM_MISMATCH = 1011;
+
     /**
      * Value of {@link #COLUMN_REASON} when the download is paused because some network error
      * occurred and the download manager is waiting before retrying the request.
@@ -224,6 +232,32 @@ public class DownloadManager {
      */
     public final static String ACTION_DOWNLOAD_COMPLETE = "android.intent.action.DOWNLOAD_COMPLETE";
 
+    /**
+     * Local broadcast sent by the download service when downloads changed, at most once
+     * per {@link #setChangeBroadcastInterval interval}. It carries only what changed since
+     * the previous one, see {@link #EXTRA_CHANGED_DOWNLOADS}.
+     */
+    public final static String ACTION_DOWNLOADS_CHANGED =
+            "com.nianing.downloadmanager.action.DOWNLOADS_CHANGED";
+
+    /**
+     * Extra of {@link #ACTION_DOWNLOADS_CHANGED}: an ArrayList of {@link DownloadSnapshot}s of
+     * the downloads that changed or were added.
+     */
+    public final static String EXTRA_CHANGED_DOWNLOADS = "extra_changed_downloads";
+
+    /**
+     * Extra of {@link #ACTION_DOWNLOADS_CHANGED}: a long[] of the ids of downloads that are
+     * gone.
+     */
+    public final static String EXTRA_REMOVED_DOWNLOAD_IDS = "extra_removed_download_ids";
+
+    /**
+     * Extra of {@link #ACTION_DOWNLOADS_CHANGED}: true if {@link #EXTRA_CHANGED_DOWNLOADS}
+     * holds every download, and anything not in it should be dropped.
+     */
+    public final static String EXTRA_DOWNLOADS_RESET = "extra_downloads_reset";
+
     /**
      * Intent extra included with to start DownloadApp in
      * sort-by-size mode.
@@ -287,6 +321,33 @@ public class DownloadManager {
         private CharSequence mTitle;
         private CharSequence mDescription;
         private int mAllowedNetworkTypes = ~0; // default to all network types allowed
+        private int mSegmentCount = 1;
+        private int mPriority = PRIORITY_NORMAL;
+        private long mDeadline = 0;
+        private String mDigestAlgorithm;
+        private String mExpectedDigest;
+
+        /**
+         * Priority of downloads that should only use bandwidth nothing else needs.
+         */
+        public static final int PRIORITY_LOW = -1;
+
+        /**
+         * Default priority of downloads.
+         */
+        public static final int PRIORITY_NORMAL = 0;
+
+        /**
+         * Priority of downloads the user is waiting for.
+         */
+        public static final int PRIORITY_HIGH = 1;
+
+        /**
+         * Digest algorithms for {@link #setExpectedDigest(String, String)}.
+         */
+        public static final String DIGEST_SHA256 = StreamingDigest.SHA256;
+        public static final String DIGEST_MD5 = StreamingDigest.MD5;
+        public static final String DIGEST_CRC32C = StreamingDigest.CRC32C;
 
         /**
          * @param uri the HTTP URI to download.
@@ -379,6 +440,79 @@ public class DownloadManager {
             return this;
         }
 
+        /**
+         * Allow this download to be split into up to the given number of byte ranges which are
+         * fetched over parallel connections. Segmenting only happens when the server supports
+         * range requests and the file is large enough; otherwise a single connection is used.
+         * By default, downloads use a single connection.
+         *
+         * @param count number of parallel connections, between 1 and
+         *         {@link Constants#MAX_SEGMENTS}
+         * @return this object
+         */
+        public Request setSegmentCount(int count) {
+            if (count < 1 || count > Constants.MAX_SEGMENTS) {
+                throw new IllegalArgumentException("Invalid segment count: " + count);
+            }
+            mSegmentCount = count;
+            return this;
+        }
+
+        /**
+         * Set the priority of this download. When more downloads are ready than can run at
+         * once, those with a higher priority are started first, and with
+         * {@link DownloadManager#setPreemptionEnabled(boolean)} may even stop running
+         * downloads of a lower priority. By default, downloads use {@link #PRIORITY_NORMAL}.
+         *
+         * @param priority one of the PRIORITY_* constants, or any other value to order
+         *         between them
+         * @return this object
+         */
+        public Request setPriority(int priority) {
+            mPriority = priority;
+            return this;
+        }
+
+        /**
+         * Set the time by which this download should be done. Among waiting downloads of
+         * the same priority, those with the earliest deadline are started first; downloads
+         * without a deadline go last. The deadline only orders downloads, it doesn't fail
+         * a download that is late.
+         *
+         * @param timeMillis deadline in {@link System#currentTimeMillis()} time, or 0 for none
+         * @return this object
+         */
+        public Request setDeadline(long timeMillis) {
+            if (timeMillis < 0) {
+                throw new IllegalArgumentException("Invalid deadline: " + timeMillis);
+            }
+            mDeadline = timeMillis;
+            return this;
+        }
+
+        /**
+         * Set the digest the downloaded file must match. The digest is computed as the bytes
+         * are written, and carried across restarts of the download, so verifying it takes no
+         * second pass over the file. A file that doesn't match is deleted and the download
+         * fails with {@link #ERROR_CHECKSUM_MISMATCH}. Downloads with a digest aren't split
+         * into segments, since their bytes must be digested in order.
+         *
+         * @param algorithm {@link #DIGEST_SHA256}, {@link #DIGEST_MD5} or
+         *            {@link #DIGEST_CRC32C}
+         * @param hexDigest the expected digest in hex, in either case
+         * @return this object
+         */
+        public Request setExpectedDigest(String algorithm, String hexDigest) {
+            final byte[] digest = StreamingDigest.fromHex(hexDigest);
+            if (digest.length != StreamingDigest.create(algorithm).digest().length) {
+                throw new IllegalArgumentException("Invalid " + algorithm + " digest: "
+                        + hexDigest);
+            }
+            mDigestAlgorithm = algorithm;
+            mExpectedDigest = StreamingDigest.toHex(digest);
+            return this;
+        }
+
 
         /**
          * @return ContentValues to be passed to DownloadProvider.insert()
@@ -397,6 +531,11 @@ public class DownloadManager {
             putIfNonNull(values, Downloads.Columns.COLUMN_DESCRIPTION, mDescription);
 
             values.put(Downloads.Columns.COLUMN_ALLOWED_NETWORK_TYPES, mAllowedNetworkTypes);
+            values.put(Downloads.Columns.COLUMN_SEGMENT_COUNT, mSegmentCount);
+            values.put(Downloads.Columns.COLUMN_PRIORITY, mPriority);
+            values.put(Downloads.Columns.COLUMN_DEADLINE, mDeadline);
+            putIfNonNull(values, Downloads.Columns.COLUMN_DIGEST_ALGORITHM, mDigestAlgorithm);
+            putIfNonNull(values, Downloads.Columns.COLUMN_EXPECTED_DIGEST, mExpectedDigest);
             return values;
         }
 
@@ -558,7 +697,7 @@ public class DownloadManager {
      */
     private DownloadManager(Context context) {
         mContext = context;
-        mDownloadProvider = new DownloadProvider(context);
+        mDownloadProvider = DownloadProvider.getInstance(context);
     }
 
     public static DownloadManager getInstance(Context context){
@@ -582,6 +721,22 @@ public class DownloadManager {
         return id;
     }
 
+    /**
+     * Enqueue a batch of new downloads at once. All downloads are stored in a single
+     * transaction, and the download manager looks at them in a single pass, which is much
+     * cheaper than calling {@link #enqueue(Request)} for each of a large number of requests.
+     *
+     * @param requests the parameters specifying each download
+     * @return the IDs of the downloads, in the order of the given requests
+     */
+    public long[] enqueue(List<Request> requests) {
+        final List<ContentValues> valuesList = new ArrayList<ContentValues>(requests.size());
+        for (Request request : requests) {
+            valuesList.add(request.toContentValues(mPackageName));
+        }
+        return mDownloadProvider.bulkInsert(valuesList);
+    }
+
     /**
      * Marks the specified download as 'to be deleted'. This is done when a completed download
      * is to be removed but the row was stored without enough info to delete the corresponding
@@ -603,7 +758,7 @@ public class DownloadManager {
         if (ids.length == 1) {
             return mDownloadProvider.update(ids[0], values,null, null);
         } 
-        return mDownloadProvider.update(-1,values, getWhereClauseForIds(ids),getWhereArgsForIds(ids));
+        return mDownloadProvider.update(ids, values);
     }
 
     /**
@@ -618,6 +773,13 @@ public class DownloadManager {
         return markRowDeleted(ids);
     }
 
+    /**
+     * Pause downloads. Running downloads stop at their next chunk and keep their partial
+     * data; any number of ids is applied in a single transaction.
+     *
+     * @param ids the IDs of the downloads to pause
+     * @return the number of downloads actually paused
+     */
     public int stop(long... ids){
         if (ids == null || ids.length == 0) {
             // called with nothing to remove!
@@ -630,9 +792,15 @@ public class DownloadManager {
         if (ids.length == 1) {
             return mDownloadProvider.update(ids[0], values,null, null);
         }
-        return 0;
+        return mDownloadProvider.update(ids, values);
     }
 
+    /**
+     * Resume paused downloads; any number of ids is applied in a single transaction.
+     *
+     * @param ids the IDs of the downloads to resume
+     * @return the number of downloads actually resumed
+     */
     public int start(long... ids){
         if (ids == null || ids.length == 0) {
             // called with nothing to remove!
@@ -646,8 +814,192 @@ public class DownloadManager {
         if (ids.length == 1) {
             return mDownloadProvider.update(ids[0], values,null, null);
         }
-        return 0;
+        return mDownloadProvider.update(ids, values);
+    }
+    /**
+     * Set how long the progress of running downloads may be kept in memory before it is
+     * written to the database. Longer intervals mean fewer database writes, but more
+     * data to fetch again if the process dies mid-download; 0 writes every progress
+     * step immediately. Progress is always written when a download pauses, fails or
+     * completes.
+     *
+     * @param millis flush interval in milliseconds
+     */
+    public void setProgressFlushInterval(long millis) {
+        ProgressJournal.setFlushInterval(millis);
+    }
+
+    /**
+     * Set the shortest time between two {@link #ACTION_DOWNLOADS_CHANGED} broadcasts;
+     * changes made in between are merged into the next one. Defaults to
+     * {@link Constants#MIN_CHANGE_BROADCAST_INTERVAL}.
+     *
+     * @param millis interval in milliseconds, 0 to broadcast after every change
+     */
+    public void setChangeBroadcastInterval(long millis) {
+        ChangeFeed.setMinInterval(millis);
+    }
+
+    /**
+     * Ask for an {@link #ACTION_DOWNLOADS_CHANGED} broadcast carrying every download, with
+     * {@link #EXTRA_DOWNLOADS_RESET} set. Receivers registered after the downloads were
+     * loaded call this to catch up.
+     */
+    public void requestDownloadsSnapshot() {
+        final Intent intent = new Intent(mContext, DownloadService.class);
+        intent.putExtra(Constants.EXTRA_RESET_CHANGES, true);
+        mContext.startService(intent);
+    }
+
+    /**
+     * Stream the progress of a download to the given listener on the main thread: bytes,
+     * speed and estimated time left, at most once per interval while it runs and once
+     * more whenever it stops. Samples come straight from the running transfer, without
+     * querying the database. The speed is measured over windows of half a second.
+     *
+     * @param id the download
+     * @param intervalMillis the shortest time between two samples
+     */
+    public void subscribeProgress(long id, long intervalMillis, ProgressListener listener) {
+        subscribeProgress(id, intervalMillis, listener, null);
+    }
+
+    /**
+     * Like {@link #subscribeProgress(long, long, ProgressListener)}, calling the listener
+     * on the given handler.
+     */
+    public void subscribeProgress(long id, long intervalMillis, ProgressListener listener,
+            Handler handler) {
+        ProgressMonitor.getInstance().subscribe(id, intervalMillis, listener, handler);
+    }
+
+    /**
+     * Stop streaming progress to the given listener, for any download.
+     */
+    public void unsubscribeProgress(ProgressListener listener) {
+        ProgressMonitor.getInstance().unsubscribe(listener);
     }
+
+    /**
+     * Cap the bandwidth all downloads together may use. Applies from the next buffer read
+     * by running downloads. Limits set here, per package and per download all apply
+     * at once, and last until the process dies.
+     *
+     * @param bytesPerSecond the limit, or 0 for none
+     */
+    public void setMaxBandwidth(long bytesPerSecond) {
+        BandwidthLimiter.getInstance().setGlobalRate(bytesPerSecond);
+    }
+
+    /**
+     * Cap the bandwidth the downloads of a single package together may use.
+     *
+     * @param bytesPerSecond the limit, or 0 for none
+     */
+    public void setMaxBandwidthForPackage(String packageName, long bytesPerSecond) {
+        BandwidthLimiter.getInstance().setPackageRate(packageName, bytesPerSecond);
+    }
+
+    /**
+     * Cap the bandwidth a single download may use.
+     *
+     * @param bytesPerSecond the limit, or 0 for none
+     */
+    public void setMaxBandwidthForDownload(long id, long bytesPerSecond) {
+        BandwidthLimiter.getInstance().setDownloadRate(id, bytesPerSecond);
+    }
+
+    /**
+     * Set the HTTP client downloads use, for example one supporting HTTP/2 or an
+     * in-process fake for tests. Applies from the next request of each download.
+     *
+     * @param transport the client, or null for the default built on HttpURLConnection
+     */
+    public void setHttpTransport(HttpTransport transport) {
+        DownloadThread.setTransport(transport);
+    }
+
+    /**
+     * Returns the counters and phase timings of the downloads of this process, per
+     * download and in aggregate.
+     */
+    public DownloadMetrics getMetrics() {
+        return DownloadMetrics.getInstance();
+    }
+
+    /**
+     * Returns the current queue depth, wait and run times, and thread utilization of the
+     * pool running downloads. Cheap enough to poll for a dashboard.
+     */
+    public ExecutorSnapshot getExecutorSnapshot() {
+        return ExecutorMonitor.getInstance().getSnapshot();
+    }
+
+    /**
+     * Register an observer for every change to any download. Observers get the changes
+     * in batches, on a thread of their own, and must be unregistered when no longer
+     * needed.
+     */
+    public void registerObserver(DownloadObserver observer) {
+        mDownloadProvider.registerObserver(observer);
+    }
+
+    /**
+     * Register an observer for the changes to a single download.
+     */
+    public void registerObserver(DownloadObserver observer, long id) {
+        mDownloadProvider.registerObserverForDownload(observer, id);
+    }
+
+    /**
+     * Register an observer for the changes to downloads that were, or now are, in one of
+     * the given states.
+     *
+     * @param statuses a mask of {@link #STATUS_PENDING}, {@link #STATUS_RUNNING},
+     *            {@link #STATUS_PAUSED}, {@link #STATUS_SUCCESSFUL} and {@link #STATUS_FAILED}
+     */
+    public void registerObserverForStatus(DownloadObserver observer, int statuses) {
+        mDownloadProvider.registerObserverForStatus(observer, statuses);
+    }
+
+    /**
+     * Stop sending changes to the given observer, whatever it was registered for.
+     */
+    public void unregisterObserver(DownloadObserver observer) {
+        mDownloadProvider.unregisterObserver(observer);
+    }
+
+    /**
+     * Set whether a download that has to wait for a free connection may stop a running
+     * download of lower priority. The stopped download is resumed from where it was, so
+     * only downloads that can resume (the server sent an ETag) are ever stopped.
+     * Disabled by default.
+     */
+    public void setPreemptionEnabled(boolean enabled) {
+        DownloadExecutor.setPreemptionEnabled(enabled);
+    }
+
+    /**
+     * Set how many downloads may run at once against a single host; any further ready
+     * downloads for that host wait, letting downloads from other hosts use the free
+     * connections. Waiting downloads are started in turn across hosts. Defaults to
+     * {@link Constants#DEFAULT_MAX_DOWNLOADS_PER_HOST}.
+     *
+     * @param max the limit, or 0 for none
+     */
+    public void setMaxConcurrentDownloadsPerHost(int max) {
+        DownloadDispatcher.setMaxPerHost(max);
+    }
+
+    /**
+     * Set how many downloads may run at once for a single package. No limit by default.
+     *
+     * @param max the limit, or 0 for none
+     */
+    public void setMaxConcurrentDownloadsPerPackage(int max) {
+        DownloadDispatcher.setMaxPerPackage(max);
+    }
+
     /**
      * Query the download manager about downloads that have been requested.
      * @param query parameters specifying filters for this query
@@ -688,7 +1040,8 @@ public class DownloadManager {
         values.putNull(Downloads.Columns._DATA);
         values.put(Downloads.Columns.COLUMN_STATUS, Downloads.Columns.STATUS_PENDING);
         values.put(Downloads.Columns.COLUMN_FAILED_CONNECTIONS, 0);
-        mDownloadProvider.update(-1, values, getWhereClauseForIds(ids), getWhereArgsForIds(ids));
+        values.putNull(Downloads.Columns.COLUMN_DIGEST_STATE);
+        mDownloadProvider.update(ids, values);
     }
 
 
@@ -904,32 +1257,38 @@ public class DownloadManager {
                 case Downloads.Columns.STATUS_FILE_ALREADY_EXISTS_ERROR:
                     return ERROR_FILE_ALREADY_EXISTS;
 
+                case Downloads.Columns.STATUS_CHECKSUM_MISMATCH:
+                    return ERROR_CHECKSUM_MISMATCH;
+
                 default:
                     return ERROR_UNKNOWN;
             }
         }
+    }
 
-        private int translateStatus(int status) {
-            switch (status) {
-                case Downloads.Columns.STATUS_PENDING:
-                    return STATUS_PENDING;
-
-                case Downloads.Columns.STATUS_RUNNING:
-                    return STATUS_RUNNING;
-
-                case Downloads.Columns.STATUS_PAUSED_BY_APP:
-                case Downloads.Columns.STATUS_WAITING_TO_RETRY:
-                case Downloads.Columns.STATUS_WAITING_FOR_NETWORK:
-                case Downloads.Columns.STATUS_QUEUED_FOR_WIFI:
-                    return STATUS_PAUSED;
-
-                case Downloads.Columns.STATUS_SUCCESS:
-                    return STATUS_SUCCESSFUL;
-
-                default:
-                    assert Downloads.Columns.isStatusError(status);
-                    return STATUS_FAILED;
-            }
+    /**
+     * Translate a {@link Downloads.Columns} status into one of the STATUS_* classes above.
+     */
+    static int translateStatus(int status) {
+        switch (status) {
+            case Downloads.Columns.STATUS_PENDING:
+                return STATUS_PENDING;
+
+            case Downloads.Columns.STATUS_RUNNING:
+                return STATUS_RUNNING;
+
+            case Downloads.Columns.STATUS_PAUSED_BY_APP:
+            case Downloads.Columns.STATUS_WAITING_TO_RETRY:
+            case Downloads.Columns.STATUS_WAITING_FOR_NETWORK:
+            case Downloads.Columns.STATUS_QUEUED_FOR_WIFI:
+                return STATUS_PAUSED;
+
+            case Downloads.Columns.STATUS_SUCCESS:
+                return STATUS_SUCCESSFUL;
+
+            default:
+                assert Downloads.Columns.isStatusError(status);
+                return STATUS_FAILED;
         }
     }
 }
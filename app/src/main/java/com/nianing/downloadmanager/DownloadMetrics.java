@@ -0,0 +1,266 @@
+package com.nianing.downloadmanager;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of where download time goes, kept per download and in
+ * aggregate, for apps to pull whenever they want instead of scraping the log.
+ * <p>
+ * Phases are recorded by {@link DownloadService} (queue wait and update passes),
+ * {@link DownloadThread} and its {@link HttpTransport} (DNS, connect, TLS, time to first
+ * byte and transfer), and {@link DownloadProvider} (database writes). All times are in
+ * microseconds. Per download figures are only kept for the
+ * {@link Constants#MAX_TIMED_DOWNLOADS} downloads touched most recently.
+ */
+public class DownloadMetrics {
+    /** Time from handing a download to the executor until a thread starts on it. */
+    public static final int PHASE_QUEUE_WAIT = 0;
+
+    /**
+     * Time to resolve the host of a request. Only recorded by an {@link HttpTransport}
+     * that can observe the lookup; otherwise it is part of {@link #PHASE_CONNECT} or
+     * {@link #PHASE_TLS}.
+     */
+    public static final int PHASE_DNS = 1;
+
+    /** Time to open the connection of a plain HTTP request, resolving its host included. */
+    public static final int PHASE_CONNECT = 2;
+
+    /**
+     * Time to open the connection of an HTTPS request. {@link java.net.HttpURLConnection}
+     * doesn't tell the TCP and TLS handshakes apart, so this covers both.
+     */
+    public static final int PHASE_TLS = 3;
+
+    /** Time from sending a request until its status line arrived. */
+    public static final int PHASE_FIRST_BYTE = 4;
+
+    /** Time spent reading response bodies into the destination file. */
+    public static final int PHASE_TRANSFER = 5;
+
+    /** Time spent writing rows of the downloads table. */
+    public static final int PHASE_DB_WRITE = 6;
+
+    /** Time {@link DownloadService} spent on one pass over the downloads; aggregate only. */
+    public static final int PHASE_UPDATE_PASS = 7;
+
+    static final int NUM_PHASES = 8;
+
+    private static final String[] PHASE_NAMES = {
+            "queueWait", "dns", "connect", "tls", "firstByte", "transfer", "dbWrite",
+            "updatePass" };
+
+    /** Attempts a {@link DownloadThread} started. */
+    public static final int COUNTER_STARTED = 0;
+
+    /** Downloads that completed successfully. */
+    public static final int COUNTER_SUCCEEDED = 1;
+
+    /** Downloads that failed for good. */
+    public static final int COUNTER_FAILED = 2;
+
+    /** Attempts that ended in an error worth retrying. */
+    public static final int COUNTER_RETRIES = 3;
+
+    /** Redirects followed. */
+    public static final int COUNTER_REDIRECTS = 4;
+
+    /** Writes to the downloads table. */
+    public static final int COUNTER_DB_WRITES = 5;
+
+    private static final int NUM_COUNTERS = 6;
+
+    private static final String[] COUNTER_NAMES = {
+            "started", "succeeded", "failed", "retries", "redirects", "dbWrites" };
+
+    private static DownloadMetrics sInstance;
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[NUM_PHASES];
+    private final AtomicLongArray mCounters = new AtomicLongArray(NUM_COUNTERS);
+
+    /** Timings of recent downloads, least recently touched first. */
+    private final Map<Long, DownloadTiming> mTimings =
+            new LinkedHashMap<Long, DownloadTiming>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, DownloadTiming> eldest) {
+                    return size() > Constants.MAX_TIMED_DOWNLOADS;
+                }
+            };
+
+    public static synchronized DownloadMetrics getInstance() {
+        if (sInstance == null) {
+            sInstance = new DownloadMetrics();
+        }
+        return sInstance;
+    }
+
+    private DownloadMetrics() {
+        for (int i = 0; i < NUM_PHASES; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /** Returns a monotonic time in microseconds, to measure phases with. */
+    static long now() {
+        return System.nanoTime() / 1000;
+    }
+
+    private DownloadTiming getTimingLocked(long id) {
+        DownloadTiming timing = mTimings.get(id);
+        if (timing == null) {
+            timing = new DownloadTiming(id);
+            mTimings.put(id, timing);
+        }
+        return timing;
+    }
+
+    /**
+     * Record that a phase of the given download took the given time. Pass
+     * {@link DownloadEvent#ID_UNKNOWN} for time that belongs to no single download.
+     */
+    void recordPhase(long id, int phase, long micros) {
+        mHistograms[phase].record(micros);
+        if (phase == PHASE_DB_WRITE) {
+            mCounters.incrementAndGet(COUNTER_DB_WRITES);
+        }
+        if (id != DownloadEvent.ID_UNKNOWN) {
+            synchronized (mTimings) {
+                getTimingLocked(id).mPhases[phase] += micros;
+            }
+        }
+    }
+
+    /** The given download was handed to the executor. */
+    void onQueued(long id) {
+        synchronized (mTimings) {
+            getTimingLocked(id).mQueuedAt = now();
+        }
+    }
+
+    /** A {@link DownloadThread} started on the given download. */
+    void onStarted(long id) {
+        mCounters.incrementAndGet(COUNTER_STARTED);
+        final long wait;
+        synchronized (mTimings) {
+            final DownloadTiming timing = getTimingLocked(id);
+            timing.mAttempts++;
+            wait = timing.mQueuedAt != 0 ? now() - timing.mQueuedAt : -1;
+            timing.mQueuedAt = 0;
+        }
+        if (wait >= 0) {
+            recordPhase(id, PHASE_QUEUE_WAIT, wait);
+        }
+    }
+
+    /**
+     * Record the phases of a request as far as its transport measured them.
+     *
+     * @param micros time {@link HttpTransport#execute} took, counted as time to first
+     *            byte if the transport didn't measure that itself
+     */
+    void onResponse(long id, HttpTransport.Request request, long micros) {
+        for (int phase = PHASE_DNS; phase <= PHASE_FIRST_BYTE; phase++) {
+            final long time = request.getTiming(phase);
+            if (time >= 0) {
+                recordPhase(id, phase, time);
+            }
+        }
+        if (request.getTiming(PHASE_FIRST_BYTE) < 0) {
+            recordPhase(id, PHASE_FIRST_BYTE, micros);
+        }
+    }
+
+    /** A redirect was followed for the given download. */
+    void onRedirect(long id) {
+        mCounters.incrementAndGet(COUNTER_REDIRECTS);
+        synchronized (mTimings) {
+            getTimingLocked(id).mRedirects++;
+        }
+    }
+
+    /** An attempt at the given download ended with the given status. */
+    void onFinished(long id, int finalStatus) {
+        final int counter;
+        if (finalStatus == Downloads.Columns.STATUS_SUCCESS) {
+            counter = COUNTER_SUCCEEDED;
+        } else if (finalStatus == Downloads.Columns.STATUS_WAITING_TO_RETRY
+                || finalStatus == Downloads.Columns.STATUS_WAITING_FOR_NETWORK) {
+            counter = COUNTER_RETRIES;
+            synchronized (mTimings) {
+                getTimingLocked(id).mRetries++;
+            }
+        } else if (Downloads.Columns.isStatusError(finalStatus)) {
+            counter = COUNTER_FAILED;
+        } else {
+            return;
+        }
+        mCounters.incrementAndGet(counter);
+    }
+
+    /**
+     * Returns a copy of the histogram of the given phase, such as
+     * {@link #PHASE_TRANSFER}, over all downloads.
+     */
+    public LatencyHistogram getHistogram(int phase) {
+        return mHistograms[phase].copy();
+    }
+
+    /**
+     * Returns the value of the given counter, such as {@link #COUNTER_RETRIES}.
+     */
+    public long getCounter(int counter) {
+        return mCounters.get(counter);
+    }
+
+    /**
+     * Returns a copy of the timing of the given download, or null if it isn't among the
+     * downloads touched most recently.
+     */
+    public DownloadTiming getDownloadTiming(long id) {
+        synchronized (mTimings) {
+            final DownloadTiming timing = mTimings.get(id);
+            return timing != null ? new DownloadTiming(timing) : null;
+        }
+    }
+
+    /**
+     * Forget all counters, histograms and per download timings.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        for (int i = 0; i < NUM_COUNTERS; i++) {
+            mCounters.set(i, 0);
+        }
+        synchronized (mTimings) {
+            mTimings.clear();
+        }
+    }
+
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    public static String getCounterName(int counter) {
+        return COUNTER_NAMES[counter];
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("DownloadMetrics{");
+        for (int i = 0; i < NUM_COUNTERS; i++) {
+            builder.append(COUNTER_NAMES[i]).append('=').append(mCounters.get(i)).append(", ");
+        }
+        for (int i = 0; i < NUM_PHASES; i++) {
+            final LatencyHistogram histogram = mHistograms[i];
+            builder.append(PHASE_NAMES[i]).append("={n=").append(histogram.getCount())
+                    .append(", p50=").append(histogram.getPercentile(50))
+                    .append("us, p99=").append(histogram.getPercentile(99)).append("us}")
+                    .append(i < NUM_PHASES - 1 ? ", " : "}");
+        }
+        return builder.toString();
+    }
+}
@@ -1,8 +1,15 @@
 package com.nianing.downloadmanager;
 
+import java.util.List;
+
 /**
  * Created by sunjx on 2014/12/17.
  */
 public interface DownloadObserver {
-    void onChange();
+    /**
+     * Called with the changes {@link DownloadProvider} made to the downloads this observer
+     * subscribed to since the last call, oldest first. Called on a dispatch thread shared
+     * by all observers, so implementations should return quickly.
+     */
+    void onChange(List<DownloadEvent> events);
 }
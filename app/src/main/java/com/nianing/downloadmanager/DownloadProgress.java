@@ -0,0 +1,38 @@
+package com.nianing.downloadmanager;
+
+/**
+ * A sample of the progress of a running download, as sent to {@link ProgressListener}s.
+ */
+public class DownloadProgress {
+    public final long mId;
+    public final long mCurrentBytes;
+
+    /** The total size, or -1 if the server didn't tell. */
+    public final long mTotalBytes;
+
+    /** Smoothed transfer speed in bytes per second, 0 until first measured. */
+    public final long mSpeed;
+
+    /** Estimated time left in ms, or -1 if it can't be estimated yet. */
+    public final long mEta;
+
+    DownloadProgress(long id, long currentBytes, long totalBytes, long speed) {
+        mId = id;
+        mCurrentBytes = currentBytes;
+        mTotalBytes = totalBytes;
+        mSpeed = speed;
+        if (totalBytes < 0) {
+            mEta = -1;
+        } else if (currentBytes >= totalBytes) {
+            mEta = 0;
+        } else {
+            mEta = speed > 0 ? (totalBytes - currentBytes) * 1000 / speed : -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadProgress{id=" + mId + ", bytes=" + mCurrentBytes + "/" + mTotalBytes
+                + ", speed=" + mSpeed + ", eta=" + mEta + "}";
+    }
+}
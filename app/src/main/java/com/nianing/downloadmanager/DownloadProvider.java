@@ -6,7 +6,10 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -23,10 +26,19 @@ public final class DownloadProvider{
     /** Database filename */
     private static final String DB_NAME = "downloads.db";
     /** Current database version */
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 6;
     /** Name of table in the database */
     private static final String DB_TABLE = "downloads";
 
+    /** The most parameters SQLite accepts in a single statement */
+    private static final int MAX_SQL_PARAMETERS = 999;
+
+    /**
+     * Above this many downloads changed at once, observers get a single notification
+     * to rescan rather than one per download.
+     */
+    private static final int MAX_NOTIFY_PER_ID = 64;
+
 
     private static final String[] sAppReadableColumnsArray = new String[] {
         Downloads.Columns._ID,
@@ -59,6 +71,21 @@ public final class DownloadProvider{
 
     SystemFacade mSystemFacade;
 
+    /** Batches progress updates from running downloads */
+    private ProgressJournal mProgressJournal;
+
+    /** In-memory state of all downloads, checkpointed through {@link #mProgressJournal} */
+    private DownloadStore mDownloadStore;
+
+    /*
+     * Statements for the hot paths, compiled once against the writable database.
+     * SQLiteStatement isn't thread safe, so each is used while holding its own lock.
+     */
+    private SQLiteStatement mUpdateProgressStatement;
+    private SQLiteStatement mUpdateSegmentProgressStatement;
+    private SQLiteStatement mUpdateStatusStatement;
+    private SQLiteStatement mQueryStatusStatement;
+
     /**
      * This class encapsulates a SQL where clause and its parameters.  It makes it possible for
      * to return both pieces of information, and provides some utility logic to ease piece-by-piece
@@ -113,10 +140,64 @@ public final class DownloadProvider{
         public void onCreate(final SQLiteDatabase db) {
             createDownloadsTable(db);
             createHeadersTable(db);
+            createSegmentsTable(db);
+            createIndexes(db);
+        }
+
+        @Override
+        public void onOpen(final SQLiteDatabase db) {
+            super.onOpen(db);
+            // Let readers, such as the UI querying progress, run alongside the
+            // download threads' writes instead of waiting for each transaction
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && !db.isReadOnly()) {
+                db.enableWriteAheadLogging();
+            }
         }
 
         @Override
         public void onUpgrade(final SQLiteDatabase db, int oldV, final int newV) {
+            for (int version = oldV + 1; version <= newV; version++) {
+                upgradeTo(db, version);
+            }
+        }
+
+        /**
+         * Upgrade database from (version - 1) to (version).
+         */
+        private void upgradeTo(SQLiteDatabase db, int version) {
+            switch (version) {
+                case 2:
+                    addColumn(db, DB_TABLE, Downloads.Columns.COLUMN_SEGMENT_COUNT,
+                            "INTEGER NOT NULL DEFAULT 1");
+                    createSegmentsTable(db);
+                    break;
+
+                case 3:
+                    addColumn(db, DB_TABLE, Downloads.Columns.COLUMN_PRIORITY,
+                            "INTEGER NOT NULL DEFAULT 0");
+                    addColumn(db, DB_TABLE, Downloads.Columns.COLUMN_DEADLINE,
+                            "BIGINT NOT NULL DEFAULT 0");
+                    break;
+
+                case 4:
+                    createIndexes(db);
+                    break;
+
+                case 5:
+                    addColumn(db, DB_TABLE, Downloads.Columns.COLUMN_DIGEST_ALGORITHM, "TEXT");
+                    addColumn(db, DB_TABLE, Downloads.Columns.COLUMN_EXPECTED_DIGEST, "TEXT");
+                    addColumn(db, DB_TABLE, Downloads.Columns.COLUMN_DIGEST_STATE, "TEXT");
+                    break;
+
+                case 6:
+                    db.execSQL("DROP INDEX IF EXISTS " + DB_TABLE + "_status");
+                    db.execSQL("DROP INDEX IF EXISTS " + DB_TABLE + "_deleted");
+                    db.execSQL("DROP INDEX IF EXISTS " + DB_TABLE + "_lastmod");
+                    break;
+
+                default:
+                    throw new IllegalStateException("Don't know how to upgrade to " + version);
+            }
         }
 
         /**
@@ -161,7 +242,13 @@ public final class DownloadProvider{
                         Downloads.Columns.COLUMN_TITLE + " TEXT, " +
                         Downloads.Columns.COLUMN_DESCRIPTION + " TEXT, " +
                         Downloads.Columns.COLUMN_ALLOWED_NETWORK_TYPES + " INTEGER NOT NULL DEFAULT 0, " +
-                        Downloads.Columns.COLUMN_DELETED + " BOOLEAN NOT NULL DEFAULT 0 " +
+                        Downloads.Columns.COLUMN_DELETED + " BOOLEAN NOT NULL DEFAULT 0, " +
+                        Downloads.Columns.COLUMN_SEGMENT_COUNT + " INTEGER NOT NULL DEFAULT 1, " +
+                        Downloads.Columns.COLUMN_PRIORITY + " INTEGER NOT NULL DEFAULT 0, " +
+                        Downloads.Columns.COLUMN_DEADLINE + " BIGINT NOT NULL DEFAULT 0, " +
+                        Downloads.Columns.COLUMN_DIGEST_ALGORITHM + " TEXT, " +
+                        Downloads.Columns.COLUMN_EXPECTED_DIGEST + " TEXT, " +
+                        Downloads.Columns.COLUMN_DIGEST_STATE + " TEXT" +
                         " );");
             } catch (SQLException ex) {
                 Log.e(Constants.TAG, "couldn't create table in downloads database");
@@ -178,13 +265,55 @@ public final class DownloadProvider{
                        Downloads.Columns.RequestHeaders.COLUMN_VALUE + " TEXT NOT NULL" +
                        ");");
         }
+
+        private void createSegmentsTable(SQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS " + Downloads.Columns.Segments.SEGMENTS_DB_TABLE);
+            db.execSQL("CREATE TABLE " + Downloads.Columns.Segments.SEGMENTS_DB_TABLE + "(" +
+                       "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                       Downloads.Columns.Segments.COLUMN_DOWNLOAD_ID + " INTEGER NOT NULL," +
+                       Downloads.Columns.Segments.COLUMN_INDEX + " INTEGER NOT NULL," +
+                       Downloads.Columns.Segments.COLUMN_START_BYTE + " INTEGER NOT NULL," +
+                       Downloads.Columns.Segments.COLUMN_END_BYTE + " INTEGER NOT NULL," +
+                       Downloads.Columns.Segments.COLUMN_CURRENT_BYTES + " INTEGER NOT NULL DEFAULT 0" +
+                       ");");
+        }
+
+        /**
+         * Creates the indexes backing the per-download lookups of headers and segments.
+         * The scheduler reads every download on a rescan, so indexes on the downloads
+         * table itself would only add to the cost of each checkpoint.
+         */
+        private void createIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " +
+                       Downloads.Columns.RequestHeaders.HEADERS_DB_TABLE + "_download_id ON " +
+                       Downloads.Columns.RequestHeaders.HEADERS_DB_TABLE + "(" +
+                       Downloads.Columns.RequestHeaders.COLUMN_DOWNLOAD_ID + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " +
+                       Downloads.Columns.Segments.SEGMENTS_DB_TABLE + "_download_id ON " +
+                       Downloads.Columns.Segments.SEGMENTS_DB_TABLE + "(" +
+                       Downloads.Columns.Segments.COLUMN_DOWNLOAD_ID + ", " +
+                       Downloads.Columns.Segments.COLUMN_INDEX + ");");
+        }
     }
     
     private Context mContext;
-    public DownloadProvider(Context context){
+    private static DownloadProvider sInstance;
+
+    private DownloadProvider(Context context){
         mContext = context;
         init();
     }
+
+    /**
+     * Returns the provider shared by {@link DownloadManager} and {@link DownloadService},
+     * so that changes made through either reach the same observer.
+     */
+    public static synchronized DownloadProvider getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DownloadProvider(context.getApplicationContext());
+        }
+        return sInstance;
+    }
     
     
     
@@ -196,6 +325,8 @@ public final class DownloadProvider{
             mSystemFacade = new SystemFacade(mContext);
         }
         mOpenHelper = new DatabaseHelper(mContext);
+        mProgressJournal = new ProgressJournal(this);
+        mDownloadStore = new DownloadStore(this, mProgressJournal);
         // start the DownloadService class. don't wait for the 1st download to be issued.
         // saves us by getting some initialization code in DownloadService out of the way.
         Context context = mContext;
@@ -209,7 +340,58 @@ public final class DownloadProvider{
      */
     public long insert(final ContentValues values) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long rowID = insertDownload(db, values, mSystemFacade.currentTimeMillis());
+        if (rowID == -1) {
+            Log.d(Constants.TAG, "couldn't insert into downloads database");
+            return -1;
+        }
+        notifyChange(DownloadEvent.fromValues(DownloadEvent.TYPE_INSERTED, rowID, values,
+                DownloadEvent.STATUS_UNKNOWN));
+        // Always start service to handle notifications and/or scanning
+        final Context context = mContext;
+        context.startService(new Intent(context, DownloadService.class));
+        return rowID;
+    }
+
+    /**
+     * Inserts any number of rows, with their request headers, in a single transaction.
+     * Either all rows are inserted or none is. Observers get a single notification for
+     * the whole batch.
+     *
+     * @return the ids of the new rows, in the order of the given values
+     */
+    public long[] bulkInsert(final List<ContentValues> valuesList) {
+        final long[] ids = new long[valuesList.size()];
+        if (ids.length == 0) {
+            return ids;
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final long lastMod = mSystemFacade.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = insertDownload(db, valuesList.get(i), lastMod);
+                if (ids[i] == -1) {
+                    throw new SQLException("couldn't insert into downloads database");
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        // One rescan is cheaper than re-reading thousands of rows one by one
+        notifyChange(DownloadEvent.TYPE_INSERTED, DownloadEvent.ID_UNKNOWN);
+        final Context context = mContext;
+        context.startService(new Intent(context, DownloadService.class));
+        return ids;
+    }
 
+    /**
+     * Inserts a single download and its request headers, without notifying anyone.
+     *
+     * @return the id of the new row, or -1 on failure
+     */
+    private long insertDownload(SQLiteDatabase db, final ContentValues values, long lastMod) {
         ContentValues filteredValues = new ContentValues();
         copyString(Downloads.Columns.COLUMN_URI, values, filteredValues);
         copyString(Downloads.Columns.COLUMN_APP_DATA, values, filteredValues);
@@ -225,7 +407,6 @@ public final class DownloadProvider{
         filteredValues.put(Downloads.Columns.COLUMN_CURRENT_BYTES, 0);
 
         // set lastupdate to current time
-        long lastMod = mSystemFacade.currentTimeMillis();
         filteredValues.put(Downloads.Columns.COLUMN_LAST_MODIFICATION, lastMod);
         // copy some more columns as is
         copyString(Downloads.Columns.COLUMN_EXTRAS, values, filteredValues);
@@ -237,19 +418,16 @@ public final class DownloadProvider{
         copyStringWithDefault(Downloads.Columns.COLUMN_TITLE, values, filteredValues, "");
         copyStringWithDefault(Downloads.Columns.COLUMN_DESCRIPTION, values, filteredValues, "");
         copyInteger(Downloads.Columns.COLUMN_ALLOWED_NETWORK_TYPES, values, filteredValues);
+        copyInteger(Downloads.Columns.COLUMN_SEGMENT_COUNT, values, filteredValues);
+        copyInteger(Downloads.Columns.COLUMN_PRIORITY, values, filteredValues);
+        copyLong(Downloads.Columns.COLUMN_DEADLINE, values, filteredValues);
+        copyString(Downloads.Columns.COLUMN_DIGEST_ALGORITHM, values, filteredValues);
+        copyString(Downloads.Columns.COLUMN_EXPECTED_DIGEST, values, filteredValues);
 
         long rowID = db.insert(DB_TABLE, null, filteredValues);
-        if (rowID == -1) {
-            Log.d(Constants.TAG, "couldn't insert into downloads database");
-            return -1;
+        if (rowID != -1) {
+            insertRequestHeaders(db,rowID,values);
         }
-        insertRequestHeaders(db,rowID,values);
-        if(mObserber!=null){
-            mObserber.onChange();
-        }
-        // Always start service to handle notifications and/or scanning
-        final Context context = mContext;
-        context.startService(new Intent(context, DownloadService.class));
         return rowID;
     }
 
@@ -346,6 +524,176 @@ public final class DownloadProvider{
         }
     }
 
+    /**
+     * Insert the byte ranges of a segmented download into the DB.
+     */
+    public void insertSegments(final long downloadId, List<DownloadSegment> segments) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(Downloads.Columns.Segments.SEGMENTS_DB_TABLE,
+                    Downloads.Columns.Segments.COLUMN_DOWNLOAD_ID + "=" + downloadId, null);
+            ContentValues rowValues = new ContentValues();
+            rowValues.put(Downloads.Columns.Segments.COLUMN_DOWNLOAD_ID, downloadId);
+            for (DownloadSegment segment : segments) {
+                rowValues.put(Downloads.Columns.Segments.COLUMN_INDEX, segment.mIndex);
+                rowValues.put(Downloads.Columns.Segments.COLUMN_START_BYTE, segment.mStartByte);
+                rowValues.put(Downloads.Columns.Segments.COLUMN_END_BYTE, segment.mEndByte);
+                rowValues.put(Downloads.Columns.Segments.COLUMN_CURRENT_BYTES, segment.mCurrentBytes);
+                db.insert(Downloads.Columns.Segments.SEGMENTS_DB_TABLE, null, rowValues);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Handle a query for the byte ranges of a segmented download, ordered by segment index.
+     */
+    public Cursor querySegments(final long downloadId) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        String where = Downloads.Columns.Segments.COLUMN_DOWNLOAD_ID + "=" + downloadId;
+        String[] projection = new String[] {Downloads.Columns.Segments.COLUMN_INDEX,
+                                            Downloads.Columns.Segments.COLUMN_START_BYTE,
+                                            Downloads.Columns.Segments.COLUMN_END_BYTE,
+                                            Downloads.Columns.Segments.COLUMN_CURRENT_BYTES};
+        return db.query(Downloads.Columns.Segments.SEGMENTS_DB_TABLE, projection, where,
+                        null, null, null, Downloads.Columns.Segments.COLUMN_INDEX);
+    }
+
+    public ProgressJournal getProgressJournal() {
+        return mProgressJournal;
+    }
+
+    public DownloadStore getDownloadStore() {
+        return mDownloadStore;
+    }
+
+    /**
+     * Write a batch of changes recorded by the {@link ProgressJournal}, for any number of
+     * downloads and their segments, in a single transaction. Byte counts and statuses,
+     * which make up nearly all of them, go through compiled statements. Observers are
+     * notified once per download for the batch.
+     */
+    void checkpoint(Map<Long, ContentValues> downloadValues,
+            Map<Long, Map<Integer, Long>> segmentBytes) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final long start = DownloadMetrics.now();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<Long, ContentValues> entry : downloadValues.entrySet()) {
+                final long id = entry.getKey();
+                final ContentValues values = entry.getValue();
+                if (values.size() == 1 && values.containsKey(Downloads.Columns.COLUMN_CURRENT_BYTES)) {
+                    executeUpdate(getUpdateProgressStatement(db),
+                            values.getAsLong(Downloads.Columns.COLUMN_CURRENT_BYTES), id);
+                } else if (values.size() == 1 && values.containsKey(Downloads.Columns.COLUMN_STATUS)) {
+                    executeUpdate(getUpdateStatusStatement(db),
+                            values.getAsInteger(Downloads.Columns.COLUMN_STATUS), id);
+                } else {
+                    db.update(DB_TABLE, values, Downloads.Columns._ID + "=" + id, null);
+                }
+            }
+            if (!segmentBytes.isEmpty()) {
+                final SQLiteStatement statement = getUpdateSegmentProgressStatement(db);
+                synchronized (statement) {
+                    for (Map.Entry<Long, Map<Integer, Long>> download : segmentBytes.entrySet()) {
+                        for (Map.Entry<Integer, Long> segment : download.getValue().entrySet()) {
+                            statement.bindLong(1, segment.getValue());
+                            statement.bindLong(2, download.getKey());
+                            statement.bindLong(3, segment.getKey());
+                            statement.execute();
+                        }
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            DownloadMetrics.getInstance().recordPhase(DownloadEvent.ID_UNKNOWN,
+                    DownloadMetrics.PHASE_DB_WRITE, DownloadMetrics.now() - start);
+        }
+
+        // Anything beyond progress was announced when the store changed it in memory
+        for (Map.Entry<Long, ContentValues> entry : downloadValues.entrySet()) {
+            notifyChange(DownloadEvent.fromValues(DownloadEvent.TYPE_PROGRESS, entry.getKey(),
+                    entry.getValue(), DownloadEvent.STATUS_UNKNOWN));
+        }
+    }
+
+    private static void executeUpdate(SQLiteStatement statement, long value, long id) {
+        synchronized (statement) {
+            statement.bindLong(1, value);
+            statement.bindLong(2, id);
+            statement.execute();
+        }
+    }
+
+    /**
+     * Returns the status of a single download, or the given default if there is no
+     * such download.
+     */
+    public int queryStatus(final long id, final int defaultStatus) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final SQLiteStatement statement = getQueryStatusStatement(db);
+        synchronized (statement) {
+            statement.bindLong(1, id);
+            try {
+                return (int) statement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return defaultStatus;
+            }
+        }
+    }
+
+    private synchronized SQLiteStatement getUpdateProgressStatement(SQLiteDatabase db) {
+        if (mUpdateProgressStatement == null) {
+            mUpdateProgressStatement = db.compileStatement("UPDATE " + DB_TABLE + " SET " +
+                    Downloads.Columns.COLUMN_CURRENT_BYTES + "=? WHERE " +
+                    Downloads.Columns._ID + "=?");
+        }
+        return mUpdateProgressStatement;
+    }
+
+    private synchronized SQLiteStatement getUpdateSegmentProgressStatement(SQLiteDatabase db) {
+        if (mUpdateSegmentProgressStatement == null) {
+            mUpdateSegmentProgressStatement = db.compileStatement("UPDATE " +
+                    Downloads.Columns.Segments.SEGMENTS_DB_TABLE + " SET " +
+                    Downloads.Columns.Segments.COLUMN_CURRENT_BYTES + "=? WHERE " +
+                    Downloads.Columns.Segments.COLUMN_DOWNLOAD_ID + "=? AND " +
+                    Downloads.Columns.Segments.COLUMN_INDEX + "=?");
+        }
+        return mUpdateSegmentProgressStatement;
+    }
+
+    private synchronized SQLiteStatement getUpdateStatusStatement(SQLiteDatabase db) {
+        if (mUpdateStatusStatement == null) {
+            mUpdateStatusStatement = db.compileStatement("UPDATE " + DB_TABLE + " SET " +
+                    Downloads.Columns.COLUMN_STATUS + "=? WHERE " +
+                    Downloads.Columns._ID + "=?");
+        }
+        return mUpdateStatusStatement;
+    }
+
+    private synchronized SQLiteStatement getQueryStatusStatement(SQLiteDatabase db) {
+        if (mQueryStatusStatement == null) {
+            mQueryStatusStatement = db.compileStatement("SELECT " +
+                    Downloads.Columns.COLUMN_STATUS + " FROM " + DB_TABLE + " WHERE " +
+                    Downloads.Columns._ID + "=?");
+        }
+        return mQueryStatusStatement;
+    }
+
+    /**
+     * Delete the byte ranges recorded for a download.
+     */
+    public void deleteSegments(final long downloadId) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.delete(Downloads.Columns.Segments.SEGMENTS_DB_TABLE,
+                Downloads.Columns.Segments.COLUMN_DOWNLOAD_ID + "=" + downloadId, null);
+    }
+
     /**
      * Updates a row in the database
      */
@@ -381,15 +729,28 @@ public final class DownloadProvider{
         }
 
         SqlSelection selection = getWhereClause(id, where, whereArgs);
+        // Find out which downloads are affected before the update can change that
+        final long[] ids = (id > 0) ? new long[] { id } : queryIds(db, selection);
         if (filteredValues.size() > 0) {
-            count = db.update(DB_TABLE, filteredValues, selection.getSelection(),
-                    selection.getParameters());
+            final long start = DownloadMetrics.now();
+            // Written directly, so nothing journaled earlier may land on top of it
+            synchronized (mProgressJournal.getFlushLock()) {
+                mProgressJournal.discardPending(ids, filteredValues);
+                count = db.update(DB_TABLE, filteredValues, selection.getSelection(),
+                        selection.getParameters());
+            }
+            DownloadMetrics.getInstance().recordPhase(id > 0 ? id : DownloadEvent.ID_UNKNOWN,
+                    DownloadMetrics.PHASE_DB_WRITE, DownloadMetrics.now() - start);
         } else {
             count = 0;
         }
 
-        if(mObserber!=null){
-            mObserber.onChange();
+        if (count > 0) {
+            final int type = getChangeType(filteredValues);
+            for (long changedId : ids) {
+                notifyChange(DownloadEvent.fromValues(type, changedId, filteredValues,
+                        DownloadEvent.STATUS_UNKNOWN));
+            }
         }
         if (startService) {
             Context context = mContext;
@@ -400,6 +761,75 @@ public final class DownloadProvider{
     }
 
 
+    /**
+     * Apply the same values to every download with one of the given ids, in a single
+     * transaction of {@code _id IN (...)} updates. Unlike {@link #update}, the values
+     * are written as they are; no title is derived from {@link Downloads.Columns#_DATA}.
+     *
+     * @return the number of rows updated
+     */
+    public int update(final long[] ids, final ContentValues values) {
+        if (ids.length == 0 || values.size() == 0) {
+            return 0;
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count = 0;
+        final long begin = DownloadMetrics.now();
+        // Written directly, so nothing journaled earlier may land on top of it
+        synchronized (mProgressJournal.getFlushLock()) {
+            mProgressJournal.discardPending(ids, values);
+            db.beginTransaction();
+            try {
+                for (int start = 0; start < ids.length; start += MAX_SQL_PARAMETERS) {
+                    final int end = Math.min(ids.length, start + MAX_SQL_PARAMETERS);
+                    final String[] whereArgs = new String[end - start];
+                    final String where = buildIdIn(Downloads.Columns._ID, ids, start, end,
+                            whereArgs);
+                    count += db.update(DB_TABLE, values, where, whereArgs);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                DownloadMetrics.getInstance().recordPhase(DownloadEvent.ID_UNKNOWN,
+                        DownloadMetrics.PHASE_DB_WRITE, DownloadMetrics.now() - begin);
+            }
+        }
+
+        if (count > 0) {
+            if (ids.length > MAX_NOTIFY_PER_ID) {
+                // Re-reading everything in one pass beats thousands of single-row reads
+                notifyChange(getChangeType(values), DownloadEvent.ID_UNKNOWN);
+            } else {
+                final int type = getChangeType(values);
+                for (long changedId : ids) {
+                    notifyChange(DownloadEvent.fromValues(type, changedId, values,
+                            DownloadEvent.STATUS_UNKNOWN));
+                }
+            }
+        }
+        final Integer status = values.getAsInteger(Downloads.Columns.COLUMN_STATUS);
+        final Integer deleted = values.getAsInteger(Downloads.Columns.COLUMN_DELETED);
+        if ((status != null && status == Downloads.Columns.STATUS_PENDING)
+                || (deleted != null && deleted == 1)) {
+            mContext.startService(new Intent(mContext, DownloadService.class));
+        }
+        return count;
+    }
+
+    /**
+     * Returns a {@code column IN (?,...)} clause for the ids from start to end, and fills
+     * in whereArgs with them.
+     */
+    private static String buildIdIn(String column, long[] ids, int start, int end,
+            String[] whereArgs) {
+        final StringBuilder where = new StringBuilder(column).append(" IN (");
+        for (int i = start; i < end; i++) {
+            where.append(i > start ? ",?" : "?");
+            whereArgs[i - start] = Long.toString(ids[i]);
+        }
+        return where.append(')').toString();
+    }
+
     private SqlSelection getWhereClause(final long id, final String where, final String[] whereArgs) {
         SqlSelection selection = new SqlSelection();
         selection.appendClause(where, whereArgs);
@@ -419,25 +849,80 @@ public final class DownloadProvider{
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
         SqlSelection selection = getWhereClause(id, where, whereArgs);
-        final Cursor cursor = db.query(DB_TABLE, new String[] {
-                Downloads.Columns._ID ,Downloads.Columns.COLUMN_DESTINATION}, selection.getSelection(), selection.getParameters(),
-                null, null, null);
+        final long[] ids;
+        db.beginTransaction();
         try {
-            while (cursor.moveToNext()) {
-                final long tempId = cursor.getLong(1);
-                //todo delete file
+            ids = queryIds(db, selection);
+            //todo delete file
+            for (int start = 0; start < ids.length; start += MAX_SQL_PARAMETERS) {
+                final int end = Math.min(ids.length, start + MAX_SQL_PARAMETERS);
+                final String[] idArgs = new String[end - start];
+                db.delete(Downloads.Columns.Segments.SEGMENTS_DB_TABLE,
+                        buildIdIn(Downloads.Columns.Segments.COLUMN_DOWNLOAD_ID, ids, start, end,
+                                idArgs), idArgs);
+                db.delete(Downloads.Columns.RequestHeaders.HEADERS_DB_TABLE,
+                        buildIdIn(Downloads.Columns.RequestHeaders.COLUMN_DOWNLOAD_ID, ids, start,
+                                end, idArgs), idArgs);
+            }
+            count = db.delete(DB_TABLE, selection.getSelection(), selection.getParameters());
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        for (long deletedId : ids) {
+            notifyChange(DownloadEvent.TYPE_DELETED, deletedId);
+        }
+        return count;
+    }
 
+    /**
+     * Returns the ids of the downloads matching the given selection.
+     */
+    private long[] queryIds(SQLiteDatabase db, SqlSelection selection) {
+        final Cursor cursor = db.query(DB_TABLE, new String[] { Downloads.Columns._ID },
+                selection.getSelection(), selection.getParameters(), null, null, null);
+        try {
+            final long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
             }
+            return ids;
         } finally {
             cursor.close();
         }
+    }
 
-        count = db.delete(DB_TABLE, selection.getSelection(), selection.getParameters());
-
-        if(mObserber!=null){
-            mObserber.onChange();
+    /**
+     * Classify an update by the most significant column it touches.
+     */
+    static int getChangeType(ContentValues values) {
+        if (values.containsKey(Downloads.Columns.COLUMN_DELETED)) {
+            return DownloadEvent.TYPE_DELETED;
         }
-        return count;
+        if (values.containsKey(Downloads.Columns.COLUMN_CONTROL)) {
+            return DownloadEvent.TYPE_CONTROL_CHANGED;
+        }
+        if (values.containsKey(Downloads.Columns.COLUMN_STATUS)) {
+            return DownloadEvent.TYPE_STATUS_CHANGED;
+        }
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            final String key = entry.getKey();
+            if (!key.equals(Downloads.Columns.COLUMN_CURRENT_BYTES)
+                    && !key.equals(Downloads.Columns.COLUMN_TOTAL_BYTES)
+                    && !key.equals(Downloads.Columns.COLUMN_DIGEST_STATE)) {
+                return DownloadEvent.TYPE_UPDATED;
+            }
+        }
+        return DownloadEvent.TYPE_PROGRESS;
+    }
+
+    void notifyChange(int type, long id) {
+        notifyChange(new DownloadEvent(type, id));
+    }
+
+    void notifyChange(DownloadEvent event) {
+        mEventDispatcher.post(event);
     }
 
     private static final void copyInteger(String key, ContentValues from, ContentValues to) {
@@ -447,6 +932,13 @@ public final class DownloadProvider{
         }
     }
 
+    private static final void copyLong(String key, ContentValues from, ContentValues to) {
+        Long l = from.getAsLong(key);
+        if (l != null) {
+            to.put(key, l);
+        }
+    }
+
     private static final void copyBoolean(String key, ContentValues from, ContentValues to) {
         Boolean b = from.getAsBoolean(key);
         if (b != null) {
@@ -469,9 +961,33 @@ public final class DownloadProvider{
         }
     }
 
-    private DownloadObserver mObserber;
-    public void setContentObserver(DownloadObserver observer){
-        mObserber = observer;
+    private final DownloadEventDispatcher mEventDispatcher =
+            new DownloadEventDispatcher(Constants.EVENT_BUFFER_SIZE);
+
+    /**
+     * Get every change to any download.
+     */
+    public void registerObserver(DownloadObserver observer) {
+        mEventDispatcher.register(observer);
+    }
+
+    /**
+     * Get the changes to a single download.
+     */
+    public void registerObserverForDownload(DownloadObserver observer, long id) {
+        mEventDispatcher.registerForDownload(observer, id);
+    }
+
+    /**
+     * Get the changes to downloads that were, or now are, in one of the given status
+     * classes, a mask of {@link DownloadManager#STATUS_PENDING} and the like.
+     */
+    public void registerObserverForStatus(DownloadObserver observer, int statusClasses) {
+        mEventDispatcher.registerForStatus(observer, statusClasses);
+    }
+
+    public void unregisterObserver(DownloadObserver observer) {
+        mEventDispatcher.unregister(observer);
     }
 
 }
@@ -0,0 +1,66 @@
+package com.nianing.downloadmanager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One byte range of a segmented download. Each segment is fetched over its own
+ * connection and written at its offset in the destination file; its progress is
+ * persisted in {@link Downloads.Columns.Segments#SEGMENTS_DB_TABLE} so that a
+ * resumed download only re-fetches the missing part of each range.
+ */
+class DownloadSegment {
+    public final int mIndex;
+    /** First byte of this range, inclusive. */
+    public final long mStartByte;
+    /** Last byte of this range, inclusive. */
+    public final long mEndByte;
+    /** Bytes of this range already written to the destination file. */
+    public long mCurrentBytes;
+
+    public long mBytesNotified;
+    public long mTimeLastNotification;
+
+    public DownloadSegment(int index, long startByte, long endByte, long currentBytes) {
+        mIndex = index;
+        mStartByte = startByte;
+        mEndByte = endByte;
+        mCurrentBytes = currentBytes;
+        mBytesNotified = currentBytes;
+    }
+
+    /**
+     * Returns the total length of this range.
+     */
+    public long length() {
+        return mEndByte - mStartByte + 1;
+    }
+
+    /**
+     * Returns the file offset the next byte of this range should be written at.
+     */
+    public long position() {
+        return mStartByte + mCurrentBytes;
+    }
+
+    public boolean isComplete() {
+        return mCurrentBytes >= length();
+    }
+
+    /**
+     * Split a download of the given length into at most {@code count} contiguous
+     * ranges, none of them smaller than {@link Constants#MIN_SEGMENT_SIZE}.
+     */
+    public static List<DownloadSegment> split(long totalBytes, int count) {
+        count = (int) Math.max(1, Math.min(count, totalBytes / Constants.MIN_SEGMENT_SIZE));
+        final List<DownloadSegment> segments = new ArrayList<DownloadSegment>(count);
+        final long segmentLength = totalBytes / count;
+        long start = 0;
+        for (int i = 0; i < count; i++) {
+            final long end = (i == count - 1) ? totalBytes - 1 : start + segmentLength - 1;
+            segments.add(new DownloadSegment(i, start, end, 0));
+            start = end + 1;
+        }
+        return segments;
+    }
+}
@@ -1,28 +1,34 @@
 package com.nianing.downloadmanager;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.File;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
+import static android.text.format.DateUtils.SECOND_IN_MILLIS;
 
 public class DownloadService extends Service {
 
@@ -39,21 +45,63 @@ public class DownloadService extends Service {
 
     /**
      * The Service's view of the list of downloads, mapping download IDs to the corresponding info
-     * object. This is kept independently from the content provider, and the Service only initiates
-     * downloads based on this data, so that it can deal with situation where the data in the
-     * content provider changes or disappears.
+     * object. This is the map of {@link DownloadStore}, kept ahead of the content provider, and
+     * the Service only initiates downloads based on this data, so that it can deal with situation
+     * where the data in the content provider changes or disappears.
      */
-    private final Map<Long, DownloadInfo> mDownloads = new HashMap();
+    private Map<Long, DownloadInfo> mDownloads;
+
+    /** Downloads that are running or were just handed to {@link #mExecutor}. */
+    private final Set<Long> mReadyIds = new HashSet<Long>();
+
+    /**
+     * Downloads that can't run yet but may as soon as conditions change, such as
+     * waiting for network. Re-evaluated whenever connectivity changes.
+     */
+    private final Set<Long> mWaitingIds = new HashSet<Long>();
+
+    /**
+     * Downloads in {@link Downloads.Columns#STATUS_WAITING_TO_RETRY}, keyed by
+     * {@link DownloadInfo#restartTime(long)}. {@link #mUpdateHandler} is woken up with
+     * {@link #MSG_RETRY} exactly when the earliest of them is due.
+     */
+    private final TimerWheel mRetryWheel = new TimerWheel(SECOND_IN_MILLIS, 4096);
+
+    /** Per-host and per-package limits on the downloads in {@link #mReadyIds}. */
+    private final DownloadDispatcher mDispatcher = new DownloadDispatcher();
+
+    /** Downloads changed since the last {@link DownloadManager#ACTION_DOWNLOADS_CHANGED}. */
+    private final ChangeFeed mChangeFeed = new ChangeFeed();
+
+    /** Change events received since the last update pass, in arrival order. */
+    private final List<DownloadEvent> mPendingEvents = new ArrayList<DownloadEvent>();
+
+    /**
+     * Whether the next update pass must rescan the whole table, because {@link #mDownloads}
+     * hasn't been loaded yet or a change couldn't be attributed to specific downloads.
+     */
+    private boolean mRescanPending = true;
 
     private final ExecutorService mExecutor = buildDownloadExecutor();
 
-    private static ExecutorService buildDownloadExecutor() {
-        final int maxConcurrent = 5;
+    private ExecutorService buildDownloadExecutor() {
+        final ConcurrencyController controller = ConcurrencyController.getInstance();
         // Create a bounded thread pool for executing downloads; it creates
         // threads as needed (up to maximum) and reclaims them when finished.
-        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
-                maxConcurrent, maxConcurrent, 10, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>());
+        // Waiting downloads are started most urgent first, and the controller
+        // adapts the size of the pool to the link.
+        final ThreadPoolExecutor executor = new DownloadExecutor(controller.getLimit()) {
+            @Override
+            protected void onTaskPreempted(long id) {
+                // The download went back to pending while its task was still
+                // running, so the update pass for that change couldn't requeue it
+                synchronized (mPendingEvents) {
+                    mPendingEvents.add(new DownloadEvent(DownloadEvent.TYPE_STATUS_CHANGED, id));
+                }
+                enqueueUpdate();
+            }
+        };
+        controller.attach(executor);
         return executor;
     }
 
@@ -61,6 +109,7 @@ public class DownloadService extends Service {
     private HandlerThread mUpdateThread;
     private Handler mUpdateHandler;
     private DownloadProvider mDownloadProvider;
+    private DownloadStore mStore;
 
     /**
      * Receives notifications when the data in the content provider changes
@@ -70,11 +119,39 @@ public class DownloadService extends Service {
         }
 
         @Override
-        public void onChange() {
+        public void onChange(List<DownloadEvent> events) {
+            synchronized (mPendingEvents) {
+                for (DownloadEvent event : events) {
+                    if (event.mId == DownloadEvent.ID_UNKNOWN) {
+                        mRescanPending = true;
+                    } else {
+                        mPendingEvents.add(event);
+                    }
+                }
+            }
             enqueueUpdate();
         }
     }
 
+    /**
+     * Re-evaluates downloads waiting for network when connectivity changes.
+     */
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final List<Long> waitingIds;
+            synchronized (mDownloads) {
+                waitingIds = new ArrayList<Long>(mWaitingIds);
+            }
+            synchronized (mPendingEvents) {
+                for (Long id : waitingIds) {
+                    mPendingEvents.add(new DownloadEvent(DownloadEvent.TYPE_UPDATED, id));
+                }
+            }
+            enqueueUpdate();
+        }
+    };
+
     /**
      * Returns an IBinder instance when someone wants to connect to this
      * service. Binding to this service is not allowed.
@@ -99,15 +176,25 @@ public class DownloadService extends Service {
         mUpdateThread.start();
         mUpdateHandler = new Handler(mUpdateThread.getLooper(), mUpdateCallback);
 
-        mDownloadProvider = new DownloadProvider(this);
+        mDownloadProvider = DownloadProvider.getInstance(this);
+        mStore = mDownloadProvider.getDownloadStore();
+        mDownloads = mStore.getDownloads();
         mObserver = new DownloadManagerContentObserver();
-        mDownloadProvider.setContentObserver(mObserver);
+        mDownloadProvider.registerObserver(mObserver);
+
+        registerReceiver(mConnectivityReceiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         int returnValue = super.onStartCommand(intent, flags, startId);
         Log.v(Constants.TAG, "Service onStart");
+        if (intent != null && intent.getBooleanExtra(Constants.EXTRA_RESET_CHANGES, false)) {
+            synchronized (mDownloads) {
+                mChangeFeed.requestReset();
+            }
+        }
         enqueueUpdate();
         return returnValue;
     }
@@ -115,6 +202,13 @@ public class DownloadService extends Service {
 
     @Override
     public void onDestroy() {
+        unregisterReceiver(mConnectivityReceiver);
+        mDownloadProvider.unregisterObserver(mObserver);
+        mDownloadProvider.getProgressJournal().flush();
+        synchronized (mDownloads) {
+            // Don't leave receivers with changes held back by the rate limit
+            publishChangesLocked(true);
+        }
         mUpdateThread.quit();
         super.onDestroy();
     }
@@ -136,13 +230,41 @@ public class DownloadService extends Service {
         mUpdateHandler.sendMessageDelayed(mUpdateHandler.obtainMessage(MSG_FINAL_UPDATE),5 * MINUTE_IN_MILLIS);
     }
 
+    /**
+     * Enqueue an {@link #updateLocked()} pass for when the earliest download
+     * in {@link #mRetryWheel} is due, replacing any earlier request.
+     */
+    private void enqueueRetryLocked(long now) {
+        mUpdateHandler.removeMessages(MSG_RETRY);
+        final long next = mRetryWheel.nextDeadline();
+        if (next != Long.MAX_VALUE) {
+            mUpdateHandler.sendMessageDelayed(mUpdateHandler.obtainMessage(MSG_RETRY),
+                    Math.max(0, next - now));
+        }
+    }
+
     private static final int MSG_UPDATE = 1;
     private static final int MSG_FINAL_UPDATE = 2;
+    private static final int MSG_RETRY = 3;
+    private static final int MSG_PUBLISH = 4;
 
     private Handler.Callback mUpdateCallback = new Handler.Callback() {
         @Override
         public boolean handleMessage(Message msg) {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            if (msg.what == MSG_PUBLISH) {
+                synchronized (mDownloads) {
+                    publishChangesLocked(false);
+                }
+                return true;
+            }
+            if (msg.what == MSG_FINAL_UPDATE) {
+                // Periodic safety net, pick up anything the events didn't cover
+                synchronized (mPendingEvents) {
+                    mRescanPending = true;
+                }
+            }
+
             // Since database is current source of truth, our "active" status
             // depends on database state. We always get one final update pass
             // once the real actions have finished and persisted their state.
@@ -154,6 +276,8 @@ public class DownloadService extends Service {
             if (isActive) {
                 // Still doing useful work, keep service alive. These active
                 // tasks will trigger another update pass when they're finished.
+                // Waiting downloads don't count, they are woken up by the retry
+                // timer or a connectivity change instead of polling.
 
                 // Enqueue delayed update pass to catch finished operations that
                 // didn't trigger an update pass; these are bugs.
@@ -174,7 +298,13 @@ public class DownloadService extends Service {
     /**
      * Update {@link #mDownloads} to match {@link DownloadProvider} state.
      * Depending on current download state it may enqueue {@link DownloadThread}
-     * notifications, and/or schedule future actions with {@link android.app.AlarmManager}.
+     * notifications, and/or schedule retries on {@link #mRetryWheel}.
+     * <p>
+     * Normally only the downloads named by the {@link DownloadEvent}s received since
+     * the last pass are re-read, so the cost of a pass follows the number of changes
+     * rather than the size of the table. The whole table is only rescanned on the
+     * first pass, on the periodic final update, or when a change couldn't be
+     * attributed to specific downloads.
      * <p>
      * Should only be called from {@link #mUpdateThread} as after being
      * requested through {@link #enqueueUpdate()}.
@@ -183,54 +313,210 @@ public class DownloadService extends Service {
      *         snapshot taken in this update.
      */
     private boolean updateLocked() {
+        final long start = DownloadMetrics.now();
         final long now = mSystemFacade.currentTimeMillis();
 
-        boolean isActive = false;
-        long nextActionMillis = Long.MAX_VALUE;
+        final List<DownloadEvent> events;
+        final boolean rescan;
+        synchronized (mPendingEvents) {
+            events = new ArrayList<DownloadEvent>(mPendingEvents);
+            mPendingEvents.clear();
+            rescan = mRescanPending;
+            mRescanPending = false;
+        }
 
-        final Set<Long> staleIds = new HashSet(mDownloads.keySet());
+        if (rescan) {
+            rescanLocked(now);
+        } else {
+            for (DownloadEvent event : events) {
+                applyEventLocked(event, now);
+            }
+        }
 
-        final Cursor cursor = mDownloadProvider.query(-1,null, null, null, null);
-        try {
-            final DownloadInfo.Reader reader = new DownloadInfo.Reader(cursor);
-            final int idColumn = cursor.getColumnIndexOrThrow(Downloads.Columns._ID);
-            while (cursor.moveToNext()) {
-                final long id = cursor.getLong(idColumn);
-                staleIds.remove(id);
+        // Kick off any retries that came due
+        for (Long id : mRetryWheel.expire(now)) {
+            final DownloadInfo info = mDownloads.get(id);
+            if (info != null) {
+                scheduleDownloadLocked(info, now);
+            }
+        }
+        enqueueRetryLocked(now);
 
-                DownloadInfo info = mDownloads.get(id);
+        // Hand any freed slots to held downloads
+        List<Long> dispatched;
+        while (!(dispatched = mDispatcher.dispatch()).isEmpty()) {
+            for (Long id : dispatched) {
+                final DownloadInfo info = mDownloads.get(id);
                 if (info != null) {
-                    updateDownload(reader, info, now);
+                    scheduleDownloadLocked(info, now);
                 } else {
-                    info = insertDownloadLocked(reader, now);
+                    mDispatcher.release(id);
                 }
+            }
+        }
 
-                if (info.mDeleted) {
-                    deleteFileIfExists(info.mDestination);
-                    mDownloadProvider.delete(info.mId, null, null);
+        publishChangesLocked(false);
+        DownloadMetrics.getInstance().recordPhase(DownloadEvent.ID_UNKNOWN,
+                DownloadMetrics.PHASE_UPDATE_PASS, DownloadMetrics.now() - start);
+        return !mReadyIds.isEmpty() || mDispatcher.getHeldCount() > 0;
+    }
 
-                } else {
-                    // Kick off download task if ready
-                    final boolean activeDownload = info.startDownloadIfReady(mExecutor);
-                    isActive |= activeDownload;
-                }
+    /**
+     * Broadcast the downloads that changed since the last broadcast, or, if the last one
+     * was too recent, wake up {@link #mUpdateHandler} with {@link #MSG_PUBLISH} once the
+     * next one is allowed.
+     *
+     * @param force if the minimum interval between broadcasts should be ignored
+     */
+    private void publishChangesLocked(boolean force) {
+        final long now = SystemClock.elapsedRealtime();
+        final long delay = mChangeFeed.getPublishDelay(now);
+        if (delay < 0) {
+            return;
+        }
+        if (delay > 0 && !force) {
+            if (!mUpdateHandler.hasMessages(MSG_PUBLISH)) {
+                mUpdateHandler.sendEmptyMessageDelayed(MSG_PUBLISH, delay);
+            }
+            return;
+        }
+        mUpdateHandler.removeMessages(MSG_PUBLISH);
+        final Intent intent = mChangeFeed.publish(mDownloads, now);
+        if (intent != null) {
+            LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+        }
+    }
 
-                // Keep track of nearest next action
-                nextActionMillis = Math.min(info.nextActionMillis(now), nextActionMillis);
+    /**
+     * Re-read every download from {@link DownloadProvider}.
+     */
+    private void rescanLocked(long now) {
+        final Set<Long> staleIds = new HashSet(mDownloads.keySet());
+        final List<DownloadInfo> infos = new ArrayList<DownloadInfo>();
+        mReadyIds.clear();
+        mWaitingIds.clear();
+
+        synchronized (mStore.getCheckpointLock()) {
+            final Cursor cursor = mDownloadProvider.query(-1,null, null, null, null);
+            try {
+                final DownloadInfo.Reader reader = new DownloadInfo.Reader(cursor);
+                final int idColumn = cursor.getColumnIndexOrThrow(Downloads.Columns._ID);
+                while (cursor.moveToNext()) {
+                    final long id = cursor.getLong(idColumn);
+                    staleIds.remove(id);
+
+                    DownloadInfo info = mDownloads.get(id);
+                    if (info != null) {
+                        updateDownload(reader, info, now);
+                    } else {
+                        info = insertDownloadLocked(reader, now);
+                    }
+                    infos.add(info);
+                }
+            } finally {
+                cursor.close();
             }
-        } finally {
-            cursor.close();
         }
 
         // Clean up stale downloads that disappeared
         for (Long id : staleIds) {
             deleteDownloadLocked(id);
         }
-        Intent intent = new Intent();
-        intent.setAction(DownloadManager.ACTION_DOWNLOAD_COMPLETE);
-        intent.putExtra("Download",(HashMap)mDownloads);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
-        return isActive;
+
+        if (!mStore.isVerified()) {
+            // First load since the process started, nothing is running yet
+            mStore.verifyPartialFiles();
+        }
+        for (DownloadInfo info : infos) {
+            scheduleDownloadLocked(info, now);
+        }
+    }
+
+    /**
+     * Re-read the single download named by the given event.
+     */
+    private void applyEventLocked(DownloadEvent event, long now) {
+        final long id = event.mId;
+        DownloadInfo info = mDownloads.get(id);
+        final boolean isNew = info == null;
+        synchronized (mStore.getCheckpointLock()) {
+            final Cursor cursor = mDownloadProvider.query(id, null, null, null, null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    info = null;
+                } else {
+                    final DownloadInfo.Reader reader = new DownloadInfo.Reader(cursor);
+                    if (!isNew) {
+                        updateDownload(reader, info, now);
+                    } else {
+                        info = insertDownloadLocked(reader, now);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        if (info == null) {
+            // Row is gone, drop our copy too
+            if (mDownloads.containsKey(id)) {
+                deleteDownloadLocked(id);
+            }
+            return;
+        }
+        if (!isNew && event.mType == DownloadEvent.TYPE_PROGRESS) {
+            // Byte counts can't change whether a download should run
+            return;
+        }
+        scheduleDownloadLocked(info, now);
+    }
+
+    /**
+     * Start the given download if it is ready, and file it under the ready or
+     * waiting downloads, or on {@link #mRetryWheel}.
+     */
+    private void scheduleDownloadLocked(DownloadInfo info, long now) {
+        if (info.mDeleted) {
+            mReadyIds.remove(info.mId);
+            mWaitingIds.remove(info.mId);
+            mRetryWheel.cancel(info.mId);
+            mDispatcher.release(info.mId);
+            BandwidthLimiter.getInstance().removeDownload(info.mId);
+            deleteFileIfExists(info.mDestination);
+            mDownloadProvider.delete(info.mId, null, null);
+            return;
+        }
+
+        // Hold back downloads whose host or package already has enough running, or
+        // whose host has others waiting; dispatch() hands those slots out in order
+        if (info.isReadyToStart() && !mDispatcher.tryAcquire(info, getHost(info))) {
+            mReadyIds.remove(info.mId);
+            mWaitingIds.remove(info.mId);
+            mRetryWheel.cancel(info.mId);
+            return;
+        }
+
+        // Kick off download task if ready
+        if (info.startDownloadIfReady(mExecutor, mDispatcher)) {
+            mReadyIds.add(info.mId);
+            mWaitingIds.remove(info.mId);
+            mRetryWheel.cancel(info.mId);
+            return;
+        }
+
+        mReadyIds.remove(info.mId);
+        mDispatcher.release(info.mId);
+        final boolean paused = info.mControl == Downloads.Columns.CONTROL_PAUSED;
+        if (!paused && info.mStatus == Downloads.Columns.STATUS_WAITING_TO_RETRY) {
+            mWaitingIds.remove(info.mId);
+            mRetryWheel.schedule(info.mId, info.restartTime(now));
+        } else if (!paused && info.nextActionMillis(now) != Long.MAX_VALUE) {
+            mWaitingIds.add(info.mId);
+            mRetryWheel.cancel(info.mId);
+        } else {
+            mWaitingIds.remove(info.mId);
+            mRetryWheel.cancel(info.mId);
+        }
     }
 
     /**
@@ -239,7 +525,9 @@ public class DownloadService extends Service {
      */
     private DownloadInfo insertDownloadLocked(DownloadInfo.Reader reader, long now) {
         final DownloadInfo info = reader.newDownloadInfo(this, mSystemFacade,mDownloadProvider);
+        mStore.applyPending(info);
         mDownloads.put(info.mId, info);
+        mChangeFeed.markDirty(info.mId);
         return info;
     }
 
@@ -247,7 +535,8 @@ public class DownloadService extends Service {
      * Updates the local copy of the info about a download.
      */
     private void updateDownload(DownloadInfo.Reader reader, DownloadInfo info, long now) {
-        reader.updateFromDatabase(info);
+        mStore.refresh(reader, info);
+        mChangeFeed.markDirty(info.mId);
     }
 
     /**
@@ -265,6 +554,17 @@ public class DownloadService extends Service {
             deleteFileIfExists(info.mFileName);
         }
         mDownloads.remove(info.mId);
+        mChangeFeed.markDirty(info.mId);
+        mReadyIds.remove(info.mId);
+        mWaitingIds.remove(info.mId);
+        mRetryWheel.cancel(info.mId);
+        mDispatcher.release(info.mId);
+        BandwidthLimiter.getInstance().removeDownload(info.mId);
+    }
+
+    private static String getHost(DownloadInfo info) {
+        final String host = Uri.parse(info.mUri).getHost();
+        return host != null ? host.toLowerCase() : "";
     }
 
     private void deleteFileIfExists(String path) {
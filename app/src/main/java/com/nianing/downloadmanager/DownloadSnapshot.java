@@ -0,0 +1,96 @@
+package com.nianing.downloadmanager;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.text.TextUtils;
+
+/**
+ * Immutable copy of the fields of a {@link DownloadInfo} a UI needs to show it, as
+ * carried by {@link DownloadManager#ACTION_DOWNLOADS_CHANGED} broadcasts.
+ */
+public class DownloadSnapshot implements Parcelable {
+    public final long mId;
+    public final int mStatus;
+    public final int mControl;
+    public final long mCurrentBytes;
+    public final long mTotalBytes;
+    public final String mTitle;
+    public final String mDestination;
+
+    DownloadSnapshot(DownloadInfo info) {
+        synchronized (info) {
+            mId = info.mId;
+            mStatus = info.mStatus;
+            mControl = info.mControl;
+            mCurrentBytes = info.mCurrentBytes;
+            mTotalBytes = info.mTotalBytes;
+            mTitle = info.mTitle;
+            mDestination = info.mDestination;
+        }
+    }
+
+    private DownloadSnapshot(Parcel in) {
+        mId = in.readLong();
+        mStatus = in.readInt();
+        mControl = in.readInt();
+        mCurrentBytes = in.readLong();
+        mTotalBytes = in.readLong();
+        mTitle = in.readString();
+        mDestination = in.readString();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mId);
+        dest.writeInt(mStatus);
+        dest.writeInt(mControl);
+        dest.writeLong(mCurrentBytes);
+        dest.writeLong(mTotalBytes);
+        dest.writeString(mTitle);
+        dest.writeString(mDestination);
+    }
+
+    public static final Parcelable.Creator<DownloadSnapshot> CREATOR =
+            new Parcelable.Creator<DownloadSnapshot>() {
+        @Override
+        public DownloadSnapshot createFromParcel(Parcel in) {
+            return new DownloadSnapshot(in);
+        }
+
+        @Override
+        public DownloadSnapshot[] newArray(int size) {
+            return new DownloadSnapshot[size];
+        }
+    };
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DownloadSnapshot)) {
+            return false;
+        }
+        final DownloadSnapshot other = (DownloadSnapshot) o;
+        return mId == other.mId && mStatus == other.mStatus && mControl == other.mControl
+                && mCurrentBytes == other.mCurrentBytes && mTotalBytes == other.mTotalBytes
+                && TextUtils.equals(mTitle, other.mTitle)
+                && TextUtils.equals(mDestination, other.mDestination);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mId ^ (mId >>> 32)) * 31 + (int) (mCurrentBytes ^ (mCurrentBytes >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadSnapshot{id=" + mId + ", status=" + mStatus + ", control=" + mControl
+                + ", bytes=" + mCurrentBytes + "/" + mTotalBytes + "}";
+    }
+}
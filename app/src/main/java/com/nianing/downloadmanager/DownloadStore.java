@@ -0,0 +1,188 @@
+package com.nianing.downloadmanager;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory state of every download, which is the source of truth while the process
+ * lives. {@link DownloadProvider} is demoted to a checkpoint of it: changes made by
+ * {@link DownloadThread}s and the scheduler are applied to the {@link DownloadInfo}
+ * first, observers are told right away, and the row is only written by the
+ * {@link ProgressJournal} at its next flush. Terminal states, and anything a download
+ * can't resume without, are written through immediately. Apps still change downloads
+ * through the provider directly; such a write supersedes whatever the journal holds
+ * for the columns it sets, see {@link ProgressJournal#discardPending}.
+ * <p>
+ * Rows read back from the provider are brought up to date with
+ * {@link #refresh(DownloadInfo.Reader, DownloadInfo)}. When the store is first loaded,
+ * the recorded offsets of partial downloads are checked against their files, since
+ * the last checkpoint may be newer than what reached the disk, or the other way round.
+ */
+class DownloadStore {
+    private static final String TAG = "DownloadStore";
+
+    private final DownloadProvider mDownloadProvider;
+    private final ProgressJournal mJournal;
+
+    /** Downloads by id; also the lock for anything scheduling them. */
+    private final Map<Long, DownloadInfo> mDownloads = new HashMap<Long, DownloadInfo>();
+
+    private boolean mVerified;
+
+    public DownloadStore(DownloadProvider downloadProvider, ProgressJournal journal) {
+        mDownloadProvider = downloadProvider;
+        mJournal = journal;
+    }
+
+    public Map<Long, DownloadInfo> getDownloads() {
+        return mDownloads;
+    }
+
+    /**
+     * Returns the lock to hold while reading rows and applying {@link #applyPending}
+     * to them, so that no checkpoint lands in between.
+     */
+    public Object getCheckpointLock() {
+        return mJournal.getFlushLock();
+    }
+
+    /**
+     * Update the given info from the current row of the reader, then apply any changes
+     * not checkpointed yet.
+     */
+    public void refresh(DownloadInfo.Reader reader, DownloadInfo info) {
+        reader.updateFromDatabase(info);
+        applyPending(info);
+    }
+
+    /**
+     * Apply the changes to the given info, just read from the provider, that haven't
+     * been checkpointed yet.
+     */
+    public void applyPending(DownloadInfo info) {
+        mJournal.applyPending(info);
+    }
+
+    /**
+     * Change some columns of a download: the in-memory info right away, the provider
+     * at the next checkpoint.
+     *
+     * @param durable if the change must reach the provider before this returns
+     */
+    public void update(DownloadInfo info, ContentValues values, boolean durable) {
+        final String filename = values.getAsString(Downloads.Columns._DATA);
+        if (filename != null && TextUtils.isEmpty(info.mTitle)) {
+            values.put(Downloads.Columns.COLUMN_TITLE, new File(filename).getName());
+        }
+        final DownloadEvent event;
+        synchronized (info) {
+            final int oldStatus = info.mStatus;
+            info.applyValues(values);
+            event = new DownloadEvent(DownloadProvider.getChangeType(values), info.mId,
+                    DownloadEvent.getColumns(values), oldStatus, info.mStatus,
+                    info.mCurrentBytes, info.mTotalBytes);
+        }
+        mJournal.recordValues(info.mId, values);
+        if (durable) {
+            mJournal.flush();
+        }
+        mDownloadProvider.notifyChange(event);
+    }
+
+    /**
+     * Record the bytes a download has so far: in the in-memory info right away, the
+     * provider at the next checkpoint, which also tells observers.
+     *
+     * @param digestState state of the download's digest over those bytes, or null
+     */
+    public void recordProgress(DownloadInfo info, long currentBytes, String digestState) {
+        synchronized (info) {
+            info.mCurrentBytes = currentBytes;
+            if (digestState != null) {
+                info.mDigestState = digestState;
+            }
+        }
+        mJournal.recordProgress(info.mId, currentBytes, digestState);
+    }
+
+    /**
+     * Set the status of a download, see {@link #update}. Terminal statuses are durable.
+     */
+    public void updateStatus(DownloadInfo info, int status) {
+        final ContentValues values = new ContentValues();
+        values.put(Downloads.Columns.COLUMN_STATUS, status);
+        update(info, values, Downloads.Columns.isStatusCompleted(status));
+    }
+
+    /**
+     * Returns if the partial files have been verified since the process started.
+     */
+    public boolean isVerified() {
+        return mVerified;
+    }
+
+    /**
+     * Check the recorded offsets of every unfinished download against its file, and
+     * pull back any offset that is beyond the data actually on disk. Called once,
+     * when the store is first loaded, before any download is started.
+     */
+    public void verifyPartialFiles() {
+        for (DownloadInfo info : mDownloads.values()) {
+            if (!Downloads.Columns.isStatusCompleted(info.mStatus) && !info.mDeleted) {
+                verifyPartialFile(info);
+            }
+        }
+        mVerified = true;
+    }
+
+    private void verifyPartialFile(DownloadInfo info) {
+        final File file = info.mFileName != null ? new File(info.mFileName) : null;
+        final long length = file != null && file.exists() ? file.length() : -1;
+
+        final Cursor cursor = mDownloadProvider.querySegments(info.mId);
+        try {
+            if (cursor.getCount() > 0) {
+                if (length < 0) {
+                    // Nothing to resume from, start over with fresh ranges
+                    mDownloadProvider.deleteSegments(info.mId);
+                    resetCurrentBytes(info, 0);
+                    return;
+                }
+                while (cursor.moveToNext()) {
+                    final int index = cursor.getInt(0);
+                    final long start = cursor.getLong(1);
+                    final long current = cursor.getLong(3);
+                    if (start + current > length) {
+                        mJournal.recordSegmentProgress(info.mId, index, Math.max(0, length - start));
+                    }
+                }
+                return;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (info.mCurrentBytes > Math.max(length, 0)) {
+            resetCurrentBytes(info, Math.max(length, 0));
+        }
+    }
+
+    private void resetCurrentBytes(DownloadInfo info, long currentBytes) {
+        if (info.mCurrentBytes == currentBytes) {
+            return;
+        }
+        if (Constants.LOGV) {
+            Log.v(TAG, "download " + info.mId + " recorded " + info.mCurrentBytes
+                    + " bytes, but only " + currentBytes + " are on disk");
+        }
+        final ContentValues values = new ContentValues();
+        values.put(Downloads.Columns.COLUMN_CURRENT_BYTES, currentBytes);
+        update(info, values, false);
+    }
+}
@@ -2,6 +2,7 @@ package com.nianing.downloadmanager;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.net.NetworkInfo;
 import android.os.Process;
 import android.os.SystemClock;
@@ -10,21 +11,31 @@ import android.util.Log;
 import android.util.Pair;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static android.text.format.DateUtils.SECOND_IN_MILLIS;
 import static com.nianing.downloadmanager.Downloads.Columns.STATUS_BAD_REQUEST;
 import static com.nianing.downloadmanager.Downloads.Columns.STATUS_CANNOT_RESUME;
+import static com.nianing.downloadmanager.Downloads.Columns.STATUS_CHECKSUM_MISMATCH;
 import static com.nianing.downloadmanager.Downloads.Columns.STATUS_FILE_ERROR;
 import static com.nianing.downloadmanager.Downloads.Columns.STATUS_HTTP_DATA_ERROR;
 import static com.nianing.downloadmanager.Downloads.Columns.STATUS_TOO_MANY_REDIRECTS;
+import static com.nianing.downloadmanager.Downloads.Columns.STATUS_UNKNOWN_ERROR;
 import static com.nianing.downloadmanager.Downloads.Columns.STATUS_WAITING_FOR_NETWORK;
 import static com.nianing.downloadmanager.Downloads.Columns.STATUS_WAITING_TO_RETRY;
 import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
@@ -45,11 +56,21 @@ public class DownloadThread implements Runnable {
     private static final int HTTP_TEMP_REDIRECT = 307;
     private static final int DEFAULT_TIMEOUT = (int) (20 * SECOND_IN_MILLIS);
 
+    private static volatile HttpTransport sTransport = new UrlConnectionTransport();
+
     private final Context mContext;
     private final DownloadInfo mInfo;
     private final SystemFacade mSystemFacade;
     private final DownloadProvider mDownloadProvider;
     private final StorageManager mStorageManager;
+    private final ConcurrencyController mController = ConcurrencyController.getInstance();
+
+    /** Set when a more urgent download needs this thread, see {@link DownloadExecutor}. */
+    private volatile boolean mPreemptRequested;
+
+    /** Pool and admission control extra byte ranges are fetched under, if any. */
+    private ExecutorService mSegmentExecutor;
+    private DownloadDispatcher mDispatcher;
 
     public DownloadThread(Context context, SystemFacade systemFacade, DownloadInfo info,
             DownloadProvider downloadProvider) {
@@ -60,6 +81,37 @@ public class DownloadThread implements Runnable {
         mStorageManager = new StorageManager(context);
     }
 
+    /**
+     * Ask this download to stop at its next resumable boundary and go back to
+     * {@link Downloads.Columns#STATUS_PENDING}. Downloads that couldn't resume
+     * afterwards ignore the request and run to completion.
+     */
+    void preempt() {
+        mPreemptRequested = true;
+    }
+
+    boolean isPreemptRequested() {
+        return mPreemptRequested;
+    }
+
+    /**
+     * Fetch the byte ranges of a segmented download beyond the first on the given pool,
+     * each taking a slot of the download's host from the given dispatcher while there
+     * are any free. Without a pool, this thread fetches every range in turn.
+     */
+    void setSegmentExecutor(ExecutorService executor, DownloadDispatcher dispatcher) {
+        mSegmentExecutor = executor;
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * Set the HTTP client downloads use from their next request on, or null for the
+     * default {@link UrlConnectionTransport}.
+     */
+    static void setTransport(HttpTransport transport) {
+        sTransport = transport != null ? transport : new UrlConnectionTransport();
+    }
+
     /**
      * Returns the user agent provided by the initiating app, or use the default one
      */
@@ -84,6 +136,8 @@ public class DownloadThread implements Runnable {
         public long mCurrentBytes = 0;
         public String mHeaderETag;
         public boolean mContinuingDownload = false;
+        /** Digest over the first mCurrentBytes bytes, if the download is verified. */
+        public StreamingDigest mDigest;
         public long mBytesNotified = 0;
         public long mTimeLastNotification = 0;
         public int mNetworkType = -1;
@@ -102,6 +156,18 @@ public class DownloadThread implements Runnable {
         public int mRedirectionCount;
         public URL mUrl;
 
+        /** Whether the server advertised support for byte range requests. */
+        public boolean mAcceptRanges;
+        /** Byte ranges of a segmented download, or null when using a single connection. */
+        public List<DownloadSegment> mSegments;
+        /** Set once any segment has failed, telling the remaining segments to stop. */
+        public volatile boolean mSegmentsStopped;
+        /** The first failure of any segment, reported for the whole download. */
+        public StopRequestException mSegmentError;
+        /** Responses the segments are reading, cancelled once any segment fails. */
+        private final Set<HttpTransport.Response> mActiveResponses =
+                new HashSet<HttpTransport.Response>();
+
         public State(DownloadInfo info) {
             mRequestUri = info.mUri;
             mFilename = info.mFileName;
@@ -110,6 +176,52 @@ public class DownloadThread implements Runnable {
             mCurrentBytes = info.mCurrentBytes;
         }
 
+        /**
+         * Track a response a segment is about to read.
+         *
+         * @return false if segments were stopped already, and the response should be dropped
+         */
+        public boolean addActiveResponse(HttpTransport.Response response) {
+            synchronized (mActiveResponses) {
+                if (mSegmentsStopped) {
+                    return false;
+                }
+                mActiveResponses.add(response);
+                return true;
+            }
+        }
+
+        public void removeActiveResponse(HttpTransport.Response response) {
+            synchronized (mActiveResponses) {
+                mActiveResponses.remove(response);
+            }
+        }
+
+        /**
+         * Record the failure of a segment, and stop the others if it is the first.
+         */
+        public void failSegments(StopRequestException error) {
+            synchronized (mActiveResponses) {
+                if (mSegmentError != null) {
+                    return;
+                }
+                mSegmentError = error;
+            }
+            stopSegments();
+        }
+
+        /**
+         * Tell the remaining segments to stop, and unblock any of them waiting for data.
+         */
+        public void stopSegments() {
+            synchronized (mActiveResponses) {
+                mSegmentsStopped = true;
+                for (HttpTransport.Response response : mActiveResponses) {
+                    response.cancel();
+                }
+            }
+        }
+
         public void resetBeforeExecute() {
             // Reset any state from previous execution
             mContentLength = -1;
@@ -122,18 +234,30 @@ public class DownloadThread implements Runnable {
     @Override
     public void run() {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        runInternal();
+        mController.onDownloadStarted();
+        boolean failed = true;
+        try {
+            failed = runInternal();
+        } finally {
+            mController.onDownloadFinished(failed);
+        }
     }
 
-    private void runInternal() {
+    /**
+     * @return if the attempt failed because of a network or server error
+     */
+    private boolean runInternal() {
 
         if (DownloadInfo.queryDownloadStatus(mDownloadProvider,mInfo.mId)== Downloads.Columns.STATUS_SUCCESS) {
-            return;
+            return false;
         }
+        final DownloadMetrics metrics = DownloadMetrics.getInstance();
+        metrics.onStarted(mInfo.mId);
         State state = new State(mInfo);
         int finalStatus = Downloads.Columns.STATUS_UNKNOWN_ERROR;
         int numFailed = mInfo.mNumFailed;
         String errorMsg = null;
+        boolean networkError = false;
 
         try {
 
@@ -162,6 +286,7 @@ public class DownloadThread implements Runnable {
 
             // Some errors should be retryable, unless we fail too many times.
             if (isStatusRetryable(finalStatus)) {
+                networkError = true;
                 if (state.mGotData) {
                     numFailed = 1;
                 } else {
@@ -189,9 +314,11 @@ public class DownloadThread implements Runnable {
             finalStatus = Downloads.Columns.STATUS_UNKNOWN_ERROR;
             // falls through to the code that reports an error
         } finally {
+            metrics.onFinished(mInfo.mId, finalStatus);
             cleanupDestination(state, finalStatus);
             notifyDownloadCompleted(state, finalStatus, errorMsg, numFailed);
         }
+        return networkError;
     }
 
     /**
@@ -201,41 +328,59 @@ public class DownloadThread implements Runnable {
     private void executeDownload(State state) throws StopRequestException {
         state.resetBeforeExecute();
         setupDestinationFile(state);
+        if (state.mSegments == null && mInfo.mDigestAlgorithm != null) {
+            setupDigest(state);
+        }
+
+        if (state.mSegments != null) {
+            // Resuming a segmented download, only fetch the missing ranges
+            executeSegmentedDownload(state, null);
+            return;
+        }
 
         if (state.mCurrentBytes == state.mTotalBytes) {
+            verifyDigest(state);
             return;
         }
 
         while (state.mRedirectionCount++ < Constants.MAX_REDIRECTS) {
             // Open connection and follow any redirects until we have a useful
             // response with body.
-            HttpURLConnection conn = null;
+            HttpTransport.Response response = null;
+            boolean consumed = false;
             try {
                 checkConnectivity();
-                conn = (HttpURLConnection) state.mUrl.openConnection();
-                conn.setInstanceFollowRedirects(false);
-                conn.setConnectTimeout(DEFAULT_TIMEOUT);
-                conn.setReadTimeout(DEFAULT_TIMEOUT);
-
-                addRequestHeaders(state, conn);
-
-                final int responseCode = conn.getResponseCode();
+                final HttpTransport.Request request = newRequest(state.mUrl);
+                addRequestHeaders(state, request);
+
+                final long start = DownloadMetrics.now();
+                response = sTransport.execute(request);
+                DownloadMetrics.getInstance().onResponse(mInfo.mId, request,
+                        DownloadMetrics.now() - start);
+                final int responseCode = response.getCode();
                 switch (responseCode) {
                     case HTTP_OK:
                         if (state.mContinuingDownload) {
-                           // throw new StopRequestException(STATUS_CANNOT_RESUME, "Expected partial, but received OK");
-                           //since we cann't check the disk file,maybe a full file has been downloaded
-                           //just delete the file
-                            if(!TextUtils.isEmpty(state.mPath)){
-                                File file  = new File(state.mPath);
-                                if(file!=null&&file.exists()){
-                                    file.delete();
-                                }
-                                state.mCurrentBytes = 0;
+                            // Server ignored our range and sent the whole entity; write it
+                            // from the start over the partial file, any stale tail is
+                            // truncated once the stream ends.
+                            state.mCurrentBytes = 0;
+                            state.mContinuingDownload = false;
+                            if (state.mDigest != null) {
+                                state.mDigest.reset();
                             }
                         }
-                        processResponseHeaders(state, conn);
-                        transferData(state, conn);
+                        processResponseHeaders(state, response);
+                        if (shouldSegment(state)) {
+                            // Fetch the body as parallel ranges, the first one from
+                            // this response
+                            final HttpTransport.Response first = response;
+                            response = null;
+                            executeSegmentedDownload(state, first);
+                            return;
+                        }
+                        transferData(state, response);
+                        consumed = true;
                         return;
 
                     case HTTP_PARTIAL:
@@ -243,19 +388,23 @@ public class DownloadThread implements Runnable {
                             throw new StopRequestException(
                                     STATUS_CANNOT_RESUME, "Expected OK, but received partial");
                         }
-                        transferData(state, conn);
+                        transferData(state, response);
+                        consumed = true;
                         return;
 
                     case HTTP_MOVED_PERM:
                     case HTTP_MOVED_TEMP:
                     case HTTP_SEE_OTHER:
                     case HTTP_TEMP_REDIRECT:
-                        final String location = conn.getHeaderField("Location");
+                        final String location = response.getHeader("Location");
                         state.mUrl = new URL(state.mUrl, location);
                         if (responseCode == HTTP_MOVED_PERM) {
                             // Push updated URL back to database
                             state.mRequestUri = state.mUrl.toString();
                         }
+                        DownloadMetrics.getInstance().onRedirect(mInfo.mId);
+                        // Often the next request goes to the same host
+                        consumed = drainBody(response);
                         continue;
 
                     case HTTP_REQUESTED_RANGE_NOT_SATISFIABLE:
@@ -263,24 +412,24 @@ public class DownloadThread implements Runnable {
                                 STATUS_CANNOT_RESUME, "Requested range not satisfiable");
 
                     case HTTP_UNAVAILABLE:
-                        parseRetryAfterHeaders(state, conn);
+                        parseRetryAfterHeaders(state, response);
                         throw new StopRequestException(
-                                HTTP_UNAVAILABLE, conn.getResponseMessage());
+                                HTTP_UNAVAILABLE, response.getMessage());
 
                     case HTTP_INTERNAL_ERROR:
                         throw new StopRequestException(
-                                HTTP_INTERNAL_ERROR, conn.getResponseMessage());
+                                HTTP_INTERNAL_ERROR, response.getMessage());
 
                     default:
                         StopRequestException.throwUnhandledHttpError(
-                                responseCode, conn.getResponseMessage());
+                                responseCode, response.getMessage());
                 }
             } catch (IOException e) {
                 // Trouble with low-level sockets
                 throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
 
             } finally {
-                if (conn != null) conn.disconnect();
+                if (response != null) response.release(consumed);
             }
         }
 
@@ -289,22 +438,21 @@ public class DownloadThread implements Runnable {
 
     /**
      * Transfer data from the given connection to the destination file.
+     * Returns normally only once the whole response body was read and its stream
+     * closed, which lets the connection be kept alive.
      */
-    private void transferData(State state, HttpURLConnection conn) throws StopRequestException {
+    private void transferData(State state, HttpTransport.Response response) throws StopRequestException {
+        final long start = DownloadMetrics.now();
         InputStream in = null;
-        OutputStream out = null;
+        FileChannel out = null;
         try {
             try {
-                in = conn.getInputStream();
+                in = response.getBody();
             } catch (IOException e) {
                 throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
             }
 
-            try {
-                    out = new FileOutputStream(state.mPath,true);
-            } catch (IOException e) {
-                throw new StopRequestException(STATUS_FILE_ERROR, e);
-            }
+            out = openDestination(state);
 
             // Start streaming data, periodically watch for pause/cancel
             // commands and checking disk space as needed.
@@ -317,21 +465,416 @@ public class DownloadThread implements Runnable {
                     e.printStackTrace();
                 }
             }
+            closeDestination(out);
+            DownloadMetrics.getInstance().recordPhase(mInfo.mId, DownloadMetrics.PHASE_TRANSFER,
+                    DownloadMetrics.now() - start);
+        }
+    }
+
+    /**
+     * Open the destination file for positional writes. Data is always written at an
+     * explicit offset, so the file does not need to be opened in append mode and
+     * resumed or segmented downloads can write anywhere in it.
+     */
+    private FileChannel openDestination(State state) throws StopRequestException {
+        try {
+            return new RandomAccessFile(state.mPath, "rw").getChannel();
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        }
+    }
+
+    private void closeDestination(FileChannel out) {
+        if (out != null) {
             try {
-                if (out != null) out.flush();
+                out.close();
             } catch (IOException e) {
-            } finally {
-                if(out!=null){
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Return if the body of the current response should be fetched as parallel byte
+     * ranges. Only downloads with a known length and an ETag are split, so that each
+     * range request can be pinned to the same entity with If-Match. Downloads verified
+     * against a digest aren't split, since the digest must see the bytes in order.
+     */
+    private boolean shouldSegment(State state) {
+        return mInfo.mSegmentCount > 1
+                && state.mDigest == null
+                && state.mAcceptRanges
+                && state.mHeaderETag != null
+                && state.mCurrentBytes == 0
+                && state.mContentLength >= 2 * Constants.MIN_SEGMENT_SIZE;
+    }
+
+    /**
+     * Fetch the missing byte ranges of a segmented download over parallel connections,
+     * each writing at its own offset in the destination file.
+     * <p>
+     * Ranges beyond the first are handed to the shared pool, ordered like the download
+     * itself, as far as the dispatcher lets the host take more connections. This thread
+     * fetches the first range, then any range no pool thread has started yet, and only
+     * then waits for the others; so a download never waits on a pool that is full of
+     * downloads waiting on it.
+     *
+     * @param firstResponse the response to a request for the whole entity, to fetch the
+     *            first range from, or null
+     */
+    private void executeSegmentedDownload(State state, HttpTransport.Response firstResponse)
+            throws StopRequestException {
+        if (state.mSegments == null) {
+            state.mSegments = DownloadSegment.split(state.mContentLength,
+                    Math.min(mInfo.mSegmentCount, Constants.MAX_SEGMENTS));
+            mDownloadProvider.insertSegments(mInfo.mId, state.mSegments);
+        }
+
+        final List<SegmentTask> tasks = new ArrayList<SegmentTask>();
+        for (DownloadSegment segment : state.mSegments) {
+            if (!segment.isComplete()) {
+                tasks.add(new SegmentTask(state, segment));
+            }
+        }
+        if (firstResponse != null) {
+            if (!tasks.isEmpty() && tasks.get(0).mSegment.position() == 0) {
+                tasks.get(0).mResponse = firstResponse;
+            } else {
+                firstResponse.release(false);
+            }
+        }
+
+        if (!tasks.isEmpty()) {
+            // Ranges overlap in time, so the transfer phase is their wall time together
+            final long start = DownloadMetrics.now();
+            try {
+                for (int i = 1; i < tasks.size(); i++) {
+                    if (!tasks.get(i).submit()) {
+                        break;
+                    }
+                }
+                for (SegmentTask task : tasks) {
+                    task.runIfUnclaimed();
+                }
+                for (SegmentTask task : tasks) {
                     try {
-                        out.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                        task.await();
+                    } catch (InterruptedException e) {
+                        state.stopSegments();
+                        throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
+                    }
+                }
+                if (state.mSegmentError != null) {
+                    throw state.mSegmentError;
+                }
+            } finally {
+                DownloadMetrics.getInstance().recordPhase(mInfo.mId,
+                        DownloadMetrics.PHASE_TRANSFER, DownloadMetrics.now() - start);
+            }
+        }
+
+        handleEndOfSegments(state);
+    }
+
+    /**
+     * Fetches one byte range of a segmented download, following redirects on its own.
+     * Runs once, on whichever thread claims it first: a pool thread it was submitted
+     * to, or the download's own thread.
+     */
+    private class SegmentTask implements Runnable {
+        private final State mState;
+        private final DownloadSegment mSegment;
+        /** Response to fetch the range from instead of making a request, or null. */
+        private HttpTransport.Response mResponse;
+
+        private final AtomicBoolean mClaimed = new AtomicBoolean();
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        /** The pool task this range was submitted as, holding a host slot, or null. */
+        private DownloadExecutor.DownloadTask mSubmitted;
+
+        public SegmentTask(State state, DownloadSegment segment) {
+            mState = state;
+            mSegment = segment;
+        }
+
+        /**
+         * Hand this range to the shared pool, if there is one and the host may take
+         * another connection.
+         *
+         * @return if the range was submitted
+         */
+        boolean submit() {
+            if (mSegmentExecutor == null
+                    || (mDispatcher != null && !mDispatcher.tryAcquireExtra(mInfo.mId))) {
+                return false;
+            }
+            final DownloadExecutor.DownloadTask task =
+                    new DownloadExecutor.DownloadTask(this, mInfo);
+            mSubmitted = task;
+            try {
+                mSegmentExecutor.execute(task);
+                return true;
+            } catch (RejectedExecutionException e) {
+                releaseSlot();
+                return false;
+            }
+        }
+
+        /**
+         * Fetch the range on the calling thread, unless a pool thread already started it.
+         */
+        void runIfUnclaimed() {
+            if (mClaimed.compareAndSet(false, true)) {
+                if (mSubmitted != null && mSegmentExecutor instanceof ThreadPoolExecutor) {
+                    ((ThreadPoolExecutor) mSegmentExecutor).remove(mSubmitted);
+                }
+                // Fetched within the download's own slot instead
+                releaseSlot();
+                execute();
+            }
+        }
+
+        /**
+         * Wait until the range was fetched or failed. Only call once it was claimed.
+         */
+        void await() throws InterruptedException {
+            mDone.await();
+        }
+
+        @Override
+        public void run() {
+            if (mClaimed.compareAndSet(false, true)) {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    execute();
+                } finally {
+                    releaseSlot();
+                }
+            }
+        }
+
+        private void releaseSlot() {
+            if (mSubmitted != null) {
+                mSubmitted = null;
+                if (mDispatcher != null) {
+                    mDispatcher.releaseExtra(mInfo.mId);
+                }
+            }
+        }
+
+        private void execute() {
+            try {
+                if (!mState.mSegmentsStopped) {
+                    fetch();
+                }
+            } catch (StopRequestException e) {
+                mState.failSegments(e);
+            } catch (RuntimeException e) {
+                mState.failSegments(new StopRequestException(STATUS_UNKNOWN_ERROR, e));
+            } finally {
+                if (mResponse != null) {
+                    mResponse.release(false);
+                    mResponse = null;
+                }
+                mDone.countDown();
+            }
+        }
+
+        private void fetch() throws StopRequestException {
+            if (mResponse != null) {
+                // The whole entity, of which we only read our range
+                final HttpTransport.Response response = mResponse;
+                mResponse = null;
+                try {
+                    if (!mState.addActiveResponse(response)) {
+                        throw new StopRequestException(STATUS_HTTP_DATA_ERROR,
+                                "another range failed");
+                    }
+                    transferSegment(mState, mSegment, response);
+                } finally {
+                    mState.removeActiveResponse(response);
+                    response.release(false);
+                }
+                return;
+            }
+
+            URL url = mState.mUrl;
+            int redirectionCount = 0;
+            while (redirectionCount++ < Constants.MAX_REDIRECTS) {
+                HttpTransport.Response response = null;
+                boolean consumed = false;
+                try {
+                    checkConnectivity();
+                    final HttpTransport.Request request = newRequest(url);
+                    addRequestHeaders(mState, request, mSegment.position(), mSegment.mEndByte);
+
+                    final long start = DownloadMetrics.now();
+                    response = sTransport.execute(request);
+                    DownloadMetrics.getInstance().onResponse(mInfo.mId, request,
+                            DownloadMetrics.now() - start);
+                    if (!mState.addActiveResponse(response)) {
+                        throw new StopRequestException(STATUS_HTTP_DATA_ERROR,
+                                "another range failed");
+                    }
+                    final int responseCode = response.getCode();
+                    switch (responseCode) {
+                        case HTTP_PARTIAL:
+                            transferSegment(mState, mSegment, response);
+                            consumed = true;
+                            return;
+
+                        case HTTP_OK:
+                            throw new StopRequestException(
+                                    STATUS_CANNOT_RESUME, "Expected partial, but received OK");
+
+                        case HTTP_MOVED_PERM:
+                        case HTTP_MOVED_TEMP:
+                        case HTTP_SEE_OTHER:
+                        case HTTP_TEMP_REDIRECT:
+                            url = new URL(url, response.getHeader("Location"));
+                            DownloadMetrics.getInstance().onRedirect(mInfo.mId);
+                            consumed = drainBody(response);
+                            continue;
+
+                        case HTTP_REQUESTED_RANGE_NOT_SATISFIABLE:
+                            throw new StopRequestException(
+                                    STATUS_CANNOT_RESUME, "Requested range not satisfiable");
+
+                        case HTTP_UNAVAILABLE:
+                            synchronized (mState) {
+                                parseRetryAfterHeaders(mState, response);
+                            }
+                            throw new StopRequestException(
+                                    HTTP_UNAVAILABLE, response.getMessage());
+
+                        case HTTP_INTERNAL_ERROR:
+                            throw new StopRequestException(
+                                    HTTP_INTERNAL_ERROR, response.getMessage());
+
+                        default:
+                            StopRequestException.throwUnhandledHttpError(
+                                    responseCode, response.getMessage());
                     }
+                } catch (IOException e) {
+                    throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
+
+                } finally {
+                    if (response != null) {
+                        mState.removeActiveResponse(response);
+                        response.release(consumed);
+                    }
+                }
+            }
+
+            throw new StopRequestException(STATUS_TOO_MANY_REDIRECTS, "Too many redirects");
+        }
+    }
+
+    /**
+     * Transfer one byte range from the given connection to its offset in the
+     * destination file, persisting the progress of the range as we go.
+     */
+    private void transferSegment(State state, DownloadSegment segment, HttpTransport.Response response)
+            throws StopRequestException {
+        final BufferPool pool = BufferPool.getInstance();
+        InputStream in = null;
+        FileChannel out = null;
+        byte data[] = null;
+        try {
+            try {
+                in = response.getBody();
+            } catch (IOException e) {
+                throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
+            }
+
+            out = openDestination(state);
+
+            data = pool.acquire(Constants.MIN_BUFFER_SIZE);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (!segment.isComplete() && !state.mSegmentsStopped) {
+                int bytesRead = readFromResponse(state, data, in);
+                if (bytesRead == -1) {
+                    throw new StopRequestException(STATUS_HTTP_DATA_ERROR,
+                            "closed socket before end of segment");
+                }
+                // Never write past the end of our range
+                bytesRead = (int) Math.min(bytesRead, segment.length() - segment.mCurrentBytes);
+
+                writeDataToDestination(state, buffer, bytesRead, segment.position(), out);
+                segment.mCurrentBytes += bytesRead;
+                synchronized (state) {
+                    state.mGotData = true;
+                    state.mCurrentBytes += bytesRead;
+                    reportProgress(state);
+                }
+                reportSegmentProgress(segment);
+                throttle(state, bytesRead);
+                checkPausedOrCanceled(state);
+
+                // Segments share the measured speed of the whole download
+                final int bufferSize = adaptBufferSize(data.length,
+                        state.mSpeed / state.mSegments.size());
+                if (bufferSize != data.length) {
+                    final byte[] resized = pool.acquire(bufferSize);
+                    pool.release(data);
+                    data = resized;
+                    buffer = ByteBuffer.wrap(data);
+                }
+            }
+        } finally {
+            pool.release(data);
+            // Remember exactly where this range stopped, so a resume continues from there
+            mDownloadProvider.getProgressJournal().recordSegmentProgress(mInfo.mId,
+                    segment.mIndex, segment.mCurrentBytes);
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
             }
+            closeDestination(out);
         }
     }
 
+    /**
+     * Journal the progress of a single byte range if necessary.
+     */
+    private void reportSegmentProgress(DownloadSegment segment) {
+        final long now = SystemClock.elapsedRealtime();
+        if (segment.mCurrentBytes - segment.mBytesNotified > Constants.MIN_PROGRESS_STEP &&
+            now - segment.mTimeLastNotification > Constants.MIN_PROGRESS_TIME) {
+            mDownloadProvider.getProgressJournal().recordSegmentProgress(mInfo.mId,
+                    segment.mIndex, segment.mCurrentBytes);
+            segment.mBytesNotified = segment.mCurrentBytes;
+            segment.mTimeLastNotification = now;
+        }
+    }
+
+    /**
+     * Called once every byte range of a segmented download has been fetched, to update
+     * the database and check for consistency.
+     */
+    private void handleEndOfSegments(State state) throws StopRequestException {
+        // Write out pending range progress before the ranges are dropped
+        mDownloadProvider.getProgressJournal().flush();
+        long currentBytes = 0;
+        for (DownloadSegment segment : state.mSegments) {
+            currentBytes += segment.mCurrentBytes;
+        }
+        state.mCurrentBytes = currentBytes;
+
+        ContentValues values = new ContentValues();
+        values.put(Downloads.Columns.COLUMN_CURRENT_BYTES, state.mCurrentBytes);
+        mDownloadProvider.getDownloadStore().update(mInfo, values, false);
+
+        if (state.mCurrentBytes != state.mContentLength) {
+            throw new StopRequestException(STATUS_HTTP_DATA_ERROR,
+                    "closed socket before end of file");
+        }
+        mDownloadProvider.deleteSegments(mInfo.mId);
+    }
+
     /**
      * Check if current connectivity is valid for this request.
      */
@@ -348,22 +891,63 @@ public class DownloadThread implements Runnable {
      * Transfer as much data as possible from the HTTP response to the
      * destination file.
      */
-    private void transferData(State state, InputStream in, OutputStream out)
+    private void transferData(State state, InputStream in, FileChannel out)
             throws StopRequestException {
-        final byte data[] = new byte[Constants.BUFFER_SIZE];
-        for (;;) {
-            int bytesRead = readFromResponse(state, data, in);
-            if (bytesRead == -1) { // success, end of stream already reached
-                handleEndOfStream(state);
-                return;
+        final BufferPool pool = BufferPool.getInstance();
+        byte data[] = pool.acquire(Constants.MIN_BUFFER_SIZE);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        try {
+            for (;;) {
+                int bytesRead = readFromResponse(state, data, in);
+                if (bytesRead == -1) { // success, end of stream already reached
+                    truncateDestination(state, out);
+                    handleEndOfStream(state);
+                    return;
+                }
+
+                state.mGotData = true;
+                writeDataToDestination(state, buffer, bytesRead, state.mCurrentBytes, out);
+                if (state.mDigest != null) {
+                    state.mDigest.update(data, 0, bytesRead);
+                }
+                state.mCurrentBytes += bytesRead;
+                reportProgress(state);
+                throttle(state, bytesRead);
+                checkPausedOrCanceled(state);
+
+                final int bufferSize = adaptBufferSize(data.length, state.mSpeed);
+                if (bufferSize != data.length) {
+                    final byte[] resized = pool.acquire(bufferSize);
+                    pool.release(data);
+                    data = resized;
+                    buffer = ByteBuffer.wrap(data);
+                }
             }
+        } finally {
+            pool.release(data);
+        }
+    }
 
-            state.mGotData = true;
-            writeDataToDestination(state, data, bytesRead, out);
-            state.mCurrentBytes += bytesRead;
-            reportProgress(state);
-            checkPausedOrCanceled(state);
+    /**
+     * Return the stream buffer size to use at the given speed, so that one buffer holds
+     * about {@link Constants#BUFFER_FILL_TIME} of data. Sizes are powers of two between
+     * {@link Constants#MIN_BUFFER_SIZE} and {@link Constants#MAX_BUFFER_SIZE}; the buffer
+     * grows as soon as it is too small, but only shrinks once it is four times too large,
+     * so a noisy speed estimate doesn't cause a new allocation on every sample.
+     *
+     * @param current size of the buffer currently in use
+     * @param speed measured speed in bytes/second, or 0 if not known yet
+     */
+    static int adaptBufferSize(int current, long speed) {
+        final long target = speed * Constants.BUFFER_FILL_TIME / 1000;
+        int size = current;
+        while (size < target && size < Constants.MAX_BUFFER_SIZE) {
+            size <<= 1;
+        }
+        while (size > target * 4 && size > Constants.MIN_BUFFER_SIZE) {
+            size >>= 1;
         }
+        return size;
     }
 
     /**
@@ -375,6 +959,9 @@ public class DownloadThread implements Runnable {
             new File(state.mPath).delete();
             state.mPath = null;
         }
+        if (state.mSegments != null && Downloads.Columns.isStatusError(finalStatus)) {
+            mDownloadProvider.deleteSegments(mInfo.mId);
+        }
     }
 
     /**
@@ -391,58 +978,92 @@ public class DownloadThread implements Runnable {
                 throw new StopRequestException(Downloads.Columns.STATUS_CANCELED, "download canceled");
             }
         }
+        if (mPreemptRequested && !cannotResume(state)) {
+            throw new StopRequestException(
+                    Downloads.Columns.STATUS_PENDING, "download preempted by more urgent work");
+        }
 
         // if policy has been changed, trigger connectivity check
         checkConnectivity();
     }
 
     /**
-     * Report download progress through the database if necessary.
+     * Charge the bytes just read to the {@link BandwidthLimiter}, and wait as long as it
+     * asks, in slices so that a pause or cancel is still noticed promptly.
+     */
+    private void throttle(State state, int bytesRead) throws StopRequestException {
+        long delay = BandwidthLimiter.getInstance().charge(mInfo.mId, mInfo.mPackage, bytesRead);
+        while (delay > 0) {
+            final long slice = Math.min(delay, Constants.MAX_THROTTLE_SLEEP);
+            try {
+                Thread.sleep(slice);
+            } catch (InterruptedException e) {
+                // Being stopped; let the caller find out why
+                Thread.currentThread().interrupt();
+                return;
+            }
+            delay -= slice;
+            if (delay > 0) {
+                checkPausedOrCanceled(state);
+            }
+        }
+    }
+
+    /**
+     * Report download progress through the {@link ProgressJournal} if necessary.
      */
     private void reportProgress(State state) {
         final long now = SystemClock.elapsedRealtime();
 
         final long sampleDelta = now - state.mSpeedSampleStart;
         if (sampleDelta > 500) {
-            final long sampleSpeed = ((state.mCurrentBytes - state.mSpeedSampleBytes) * 1000)
-                    / sampleDelta;
-
-            if (state.mSpeed == 0) {
-                state.mSpeed = sampleSpeed;
-            } else {
-                state.mSpeed = ((state.mSpeed * 3) + sampleSpeed) / 4;
-            }
-
-            // Only notify once we have a full sample window
+            // Only measure once we have a full sample window
             if (state.mSpeedSampleStart != 0) {
-                //todo notify download speed
+                final long sampleSpeed = ((state.mCurrentBytes - state.mSpeedSampleBytes) * 1000)
+                        / sampleDelta;
+
+                if (state.mSpeed == 0) {
+                    state.mSpeed = sampleSpeed;
+                } else {
+                    state.mSpeed = ((state.mSpeed * 3) + sampleSpeed) / 4;
+                }
             }
 
             state.mSpeedSampleStart = now;
             state.mSpeedSampleBytes = state.mCurrentBytes;
         }
+        ProgressMonitor.getInstance().onProgress(mInfo.mId, state.mCurrentBytes,
+                state.mContentLength, state.mSpeed, now);
 
         if (state.mCurrentBytes - state.mBytesNotified > Constants.MIN_PROGRESS_STEP &&
             now - state.mTimeLastNotification > Constants.MIN_PROGRESS_TIME) {
-            ContentValues values = new ContentValues();
-            values.put(Downloads.Columns.COLUMN_CURRENT_BYTES, state.mCurrentBytes);
-            mDownloadProvider.update(mInfo.mId, values, null, null);
+            mDownloadProvider.getDownloadStore().recordProgress(mInfo, state.mCurrentBytes,
+                    state.mDigest != null ? state.mDigest.saveState() : null);
             state.mBytesNotified = state.mCurrentBytes;
             state.mTimeLastNotification = now;
         }
     }
 
     /**
-     * Write a data buffer to the destination file.
-     * @param data buffer containing the data to write
+     * Write a data buffer to the destination file at the given offset. Positional
+     * writes leave the channel position alone and are idempotent, so a failed write
+     * can simply be retried from the start of the buffer at the same offset; each
+     * partial write goes at the offset plus the bytes of the buffer already written.
+     * @param data buffer containing the data to write, backed by the read array
      * @param bytesRead how many bytes to write from the buffer
+     * @param position file offset to write the first byte at
      */
-    private void writeDataToDestination(State state, byte[] data, int bytesRead, OutputStream out)
-            throws StopRequestException {
+    private void writeDataToDestination(State state, ByteBuffer data, int bytesRead,
+            long position, FileChannel out) throws StopRequestException {
         boolean forceVerified = false;
         while (true) {
             try {
-                out.write(data, 0, bytesRead);
+                data.clear();
+                data.limit(bytesRead);
+                while (data.hasRemaining()) {
+                    out.write(data, position + data.position());
+                }
+                mController.onBytesTransferred(bytesRead);
                 return;
             } catch (IOException ex) {
                 // TODO: better differentiate between DRM and disk failures
@@ -458,6 +1079,20 @@ public class DownloadThread implements Runnable {
         }
     }
 
+    /**
+     * Drop anything past the bytes written by this transfer, left over from an earlier
+     * attempt that got further before the server restarted the entity from scratch.
+     */
+    private void truncateDestination(State state, FileChannel out) throws StopRequestException {
+        try {
+            if (out.size() > state.mCurrentBytes) {
+                out.truncate(state.mCurrentBytes);
+            }
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        }
+    }
+
     /**
      * Called when we've reached the end of the HTTP response stream, to update the database and
      * check for consistency.
@@ -468,7 +1103,10 @@ public class DownloadThread implements Runnable {
         if (state.mContentLength == -1) {
             values.put(Downloads.Columns.COLUMN_TOTAL_BYTES, state.mCurrentBytes);
         }
-        mDownloadProvider.update(mInfo.mId, values, null, null);
+        if (state.mDigest != null) {
+            values.put(Downloads.Columns.COLUMN_DIGEST_STATE, state.mDigest.saveState());
+        }
+        mDownloadProvider.getDownloadStore().update(mInfo, values, false);
 
         final boolean lengthMismatched = (state.mContentLength != -1)
                 && (state.mCurrentBytes != state.mContentLength);
@@ -481,6 +1119,22 @@ public class DownloadThread implements Runnable {
                         "closed socket before end of file");
             }
         }
+        verifyDigest(state);
+    }
+
+    /**
+     * Check the complete file against the digest the download expects, if any.
+     */
+    private void verifyDigest(State state) throws StopRequestException {
+        if (state.mDigest == null) {
+            return;
+        }
+        final String actual = StreamingDigest.toHex(state.mDigest.digest());
+        if (!actual.equalsIgnoreCase(mInfo.mExpectedDigest)) {
+            throw new StopRequestException(STATUS_CHECKSUM_MISMATCH,
+                    mInfo.mDigestAlgorithm + " mismatch: expected " + mInfo.mExpectedDigest
+                            + ", got " + actual);
+        }
     }
 
     private boolean cannotResume(State state) {
@@ -503,9 +1157,7 @@ public class DownloadThread implements Runnable {
                 return -1;
             }
 
-            ContentValues values = new ContentValues();
-            values.put(Downloads.Columns.COLUMN_CURRENT_BYTES, state.mCurrentBytes);
-            mDownloadProvider.update(mInfo.mId,values,null,null);
+            // current bytes are persisted along with the final status
             if (cannotResume(state)) {
                 throw new StopRequestException(STATUS_CANNOT_RESUME,
                         "Failed reading response: " + ex + "; unable to resume", ex);
@@ -520,9 +1172,9 @@ public class DownloadThread implements Runnable {
      * Prepare target file based on given network response. Derives filename and
      * target size as needed.
      */
-    private void processResponseHeaders(State state, HttpURLConnection conn)
+    private void processResponseHeaders(State state, HttpTransport.Response response)
             throws StopRequestException {
-        readResponseHeaders(state, conn);
+        readResponseHeaders(state, response);
         Helpers.generateSaveFile(mInfo.mDestination,state.mContentLength,mStorageManager);
         updateDatabaseFromHeaders(state);
         // check connectivity again now that we know the total size
@@ -540,21 +1192,23 @@ public class DownloadThread implements Runnable {
             values.put(Constants.ETAG, state.mHeaderETag);
         }
         values.put(Downloads.Columns.COLUMN_TOTAL_BYTES, mInfo.mTotalBytes);
-        mDownloadProvider.update(mInfo.mId,values,null,null);
+        // A restart can't resume without the file name and ETag, write them through
+        mDownloadProvider.getDownloadStore().update(mInfo, values, true);
     }
 
     /**
      * Read headers from the HTTP response and store them into local state.
      */
-    private void readResponseHeaders(State state, HttpURLConnection conn)
+    private void readResponseHeaders(State state, HttpTransport.Response response)
             throws StopRequestException {
-        state.mContentDisposition = conn.getHeaderField("Content-Disposition");
-        state.mContentLocation = conn.getHeaderField("Content-Location");
-        state.mHeaderETag = conn.getHeaderField("ETag");
+        state.mContentDisposition = response.getHeader("Content-Disposition");
+        state.mContentLocation = response.getHeader("Content-Location");
+        state.mHeaderETag = response.getHeader("ETag");
+        state.mAcceptRanges = "bytes".equalsIgnoreCase(response.getHeader("Accept-Ranges"));
 
-        final String transferEncoding = conn.getHeaderField("Transfer-Encoding");
+        final String transferEncoding = response.getHeader("Transfer-Encoding");
         if (transferEncoding == null) {
-            state.mContentLength = getHeaderFieldLong(conn, "Content-Length", -1);
+            state.mContentLength = getHeaderFieldLong(response, "Content-Length", -1);
         } else {
             state.mContentLength = -1;
         }
@@ -570,8 +1224,8 @@ public class DownloadThread implements Runnable {
         }
     }
 
-    private void parseRetryAfterHeaders(State state, HttpURLConnection conn) {
-        state.mRetryAfter = conn.getHeaderFieldInt("Retry-After", -1);
+    private void parseRetryAfterHeaders(State state, HttpTransport.Response response) {
+        state.mRetryAfter = (int) getHeaderFieldLong(response, "Retry-After", -1);
         if (state.mRetryAfter < 0) {
             state.mRetryAfter = 0;
         } else {
@@ -592,17 +1246,41 @@ public class DownloadThread implements Runnable {
     private void setupDestinationFile(State state) throws StopRequestException {
         if (!TextUtils.isEmpty(state.mPath)){ // only true if we've already run a thread for this download
             File f = new File(state.mPath);
+            final List<DownloadSegment> segments = readSegments();
+            if (!segments.isEmpty()) {
+                if (f.exists()) {
+                    // Segments are written out of order, so the file length says nothing
+                    // about progress; trust the recorded ranges instead.
+                    state.mSegments = segments;
+                    state.mCurrentBytes = 0;
+                    for (DownloadSegment segment : segments) {
+                        state.mCurrentBytes += segment.mCurrentBytes;
+                    }
+                    state.mContentLength = mInfo.mTotalBytes;
+                    state.mHeaderETag = mInfo.mETag;
+                    state.mContinuingDownload = true;
+                    Log.i(Constants.TAG, "resuming segmented download for id: " + mInfo.mId +
+                                ", with " + segments.size() + " segments and " +
+                                state.mCurrentBytes + " bytes already fetched");
+                    return;
+                }
+                // The partial file is gone, start over with a fresh split
+                mDownloadProvider.deleteSegments(mInfo.mId);
+            }
             if (f.exists()) {
                 long fileLength = f.length();
-                if (fileLength == 0) {
+                // Resume from the offset recorded in the database rather than the file
+                // length; anything the file holds past it is simply written over.
+                final long resumeOffset = Math.min(mInfo.mCurrentBytes, fileLength);
+                if (resumeOffset <= 0) {
                     // The download hadn't actually started, we can restart from scratch
                     f.delete();
-                    state.mPath = null;
+                    state.mCurrentBytes = 0;
                 }else {
                     // All right, we'll be able to resume this download
                     Log.i(Constants.TAG, "resuming download for id: " + mInfo.mId +
                                 ", and starting with file of length: " + fileLength);
-                    state.mCurrentBytes = (int) fileLength;
+                    state.mCurrentBytes = resumeOffset;
                     if (mInfo.mTotalBytes != -1) {
                         state.mContentLength = mInfo.mTotalBytes;
                     }
@@ -616,28 +1294,131 @@ public class DownloadThread implements Runnable {
         }
     }
 
+    /**
+     * Prepare the digest to verify the download against, carrying on from the state saved
+     * along with the bytes already downloaded. Without a saved state matching those bytes
+     * they can't be digested short of reading them back, so the download starts over.
+     */
+    private void setupDigest(State state) throws StopRequestException {
+        try {
+            state.mDigest = StreamingDigest.create(mInfo.mDigestAlgorithm);
+        } catch (IllegalArgumentException e) {
+            throw new StopRequestException(STATUS_BAD_REQUEST, e);
+        }
+        if (!state.mContinuingDownload) {
+            return;
+        }
+        if (mInfo.mDigestState != null) {
+            try {
+                state.mDigest.restoreState(mInfo.mDigestState);
+                if (state.mDigest.getLength() == state.mCurrentBytes) {
+                    return;
+                }
+            } catch (IllegalArgumentException e) {
+                Log.w(Constants.TAG, "invalid digest state for download " + mInfo.mId, e);
+            }
+            state.mDigest.reset();
+        }
+        Log.i(Constants.TAG, "no digest state for " + state.mCurrentBytes
+                + " bytes of download " + mInfo.mId + ", starting over");
+        new File(state.mPath).delete();
+        state.mCurrentBytes = 0;
+        state.mContinuingDownload = false;
+    }
+
+    /**
+     * Read the byte ranges recorded for this download, if it was segmented.
+     */
+    private List<DownloadSegment> readSegments() {
+        final List<DownloadSegment> segments = new ArrayList<DownloadSegment>();
+        final Cursor cursor = mDownloadProvider.querySegments(mInfo.mId);
+        try {
+            while (cursor.moveToNext()) {
+                segments.add(new DownloadSegment(cursor.getInt(0), cursor.getLong(1),
+                        cursor.getLong(2), cursor.getLong(3)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return segments;
+    }
+
     /**
      * Add custom headers for this download to the HTTP request.
      */
-    private void addRequestHeaders(State state, HttpURLConnection conn) {
+    private static HttpTransport.Request newRequest(URL url) {
+        final HttpTransport.Request request = new HttpTransport.Request(url);
+        request.setConnectTimeout(DEFAULT_TIMEOUT);
+        request.setReadTimeout(DEFAULT_TIMEOUT);
+        return request;
+    }
+
+    /**
+     * Read the rest of a short response body, such as that of a redirect, so that its
+     * connection can be reused.
+     *
+     * @return if the body was read to the end and its stream closed
+     */
+    private static boolean drainBody(HttpTransport.Response response) {
+        InputStream in = null;
+        try {
+            in = response.getBody();
+            final byte[] buffer = new byte[512];
+            int total = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                total += count;
+                if (total > Constants.MAX_DRAIN_BYTES) {
+                    return false;
+                }
+            }
+            in.close();
+            in = null;
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Released without reuse anyway
+                }
+            }
+        }
+    }
+
+    private void addRequestHeaders(State state, HttpTransport.Request request) {
+        addRequestHeaders(state, request, state.mContinuingDownload ? state.mCurrentBytes : -1, -1);
+    }
+
+    /**
+     * Add custom headers for this download to the HTTP request, asking for the byte
+     * range starting at {@code rangeStart} and ending at {@code rangeEnd} (inclusive).
+     * A negative start requests the whole entity, a negative end requests everything
+     * after the start.
+     */
+    private void addRequestHeaders(State state, HttpTransport.Request request, long rangeStart,
+            long rangeEnd) {
         for (Pair<String, String> header : mInfo.getHeaders()) {
-            conn.addRequestProperty(header.first, header.second);
+            request.addHeader(header.first, header.second);
         }
 
         // Only splice in user agent when not already defined
-        if (conn.getRequestProperty("User-Agent") == null) {
-            conn.addRequestProperty("User-Agent", userAgent());
+        if (request.getHeader("User-Agent") == null) {
+            request.addHeader("User-Agent", userAgent());
         }
 
         // Defeat transparent gzip compression, since it doesn't allow us to
         // easily resume partial downloads.
-        conn.setRequestProperty("Accept-Encoding", "identity");
+        request.setHeader("Accept-Encoding", "identity");
 
-        if (state.mContinuingDownload) {
+        if (rangeStart >= 0) {
             if (state.mHeaderETag != null) {
-                conn.addRequestProperty("If-Match", state.mHeaderETag);
+                request.addHeader("If-Match", state.mHeaderETag);
             }
-            conn.addRequestProperty("Range", "bytes=" + state.mCurrentBytes + "-");
+            request.addHeader("Range", "bytes=" + rangeStart + "-"
+                    + (rangeEnd >= 0 ? Long.toString(rangeEnd) : ""));
         }
     }
 
@@ -645,8 +1426,13 @@ public class DownloadThread implements Runnable {
      * Stores information about the completed download, and notifies the initiating application.
      */
     private void notifyDownloadCompleted(State state, int finalStatus, String errorMsg, int numFailed) {
+        // Whatever the outcome, journaled progress must land before the final status
+        mDownloadProvider.getProgressJournal().flush();
         notifyThroughDatabase(state, finalStatus, errorMsg, numFailed);
+        ProgressMonitor.getInstance().onStopped(mInfo.mId, state.mCurrentBytes,
+                state.mContentLength);
         if (Downloads.Columns.isStatusCompleted(finalStatus)) {
+            BandwidthLimiter.getInstance().removeDownload(mInfo.mId);
            //todo sendBroadCast completed
         }
     }
@@ -656,9 +1442,17 @@ public class DownloadThread implements Runnable {
         ContentValues values = new ContentValues();
         values.put(Downloads.Columns.COLUMN_STATUS, finalStatus);
         values.put(Downloads.Columns._DATA, state.mFilename);
+        values.put(Downloads.Columns.COLUMN_CURRENT_BYTES, state.mCurrentBytes);
         values.put(Downloads.Columns.COLUMN_LAST_MODIFICATION, mSystemFacade.currentTimeMillis());
         values.put(Downloads.Columns.COLUMN_FAILED_CONNECTIONS, numFailed);
         values.put(Constants.RETRY_AFTER_X_REDIRECT_COUNT, state.mRetryAfter);
+        if (state.mDigest != null) {
+            if (Downloads.Columns.isStatusCompleted(finalStatus)) {
+                values.putNull(Downloads.Columns.COLUMN_DIGEST_STATE);
+            } else {
+                values.put(Downloads.Columns.COLUMN_DIGEST_STATE, state.mDigest.saveState());
+            }
+        }
 
         if (!TextUtils.equals(mInfo.mUri, state.mRequestUri)) {
             values.put(Downloads.Columns.COLUMN_URI, state.mRequestUri);
@@ -668,12 +1462,14 @@ public class DownloadThread implements Runnable {
         if (!TextUtils.isEmpty(errorMsg)) {
             values.put(Downloads.Columns.COLUMN_ERROR_MSG, errorMsg);
         }
-        mDownloadProvider.update(mInfo.mId, values, null, null);
+        mDownloadProvider.getDownloadStore().update(mInfo, values,
+                Downloads.Columns.isStatusCompleted(finalStatus));
     }
 
-    public static long getHeaderFieldLong(URLConnection conn, String field, long defaultValue) {
+    public static long getHeaderFieldLong(HttpTransport.Response response, String field,
+            long defaultValue) {
         try {
-            return Long.parseLong(conn.getHeaderField(field));
+            return Long.parseLong(response.getHeader(field));
         } catch (NumberFormatException e) {
             return defaultValue;
         }
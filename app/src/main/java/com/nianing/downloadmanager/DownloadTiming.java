@@ -0,0 +1,68 @@
+package com.nianing.downloadmanager;
+
+/**
+ * Where the time of a single download went, summed over all of its attempts; see
+ * {@link DownloadMetrics#getDownloadTiming(long)}. Times are in microseconds.
+ */
+public class DownloadTiming {
+    public final long mId;
+
+    /** Time spent per {@link DownloadMetrics} phase, indexed by phase. */
+    final long[] mPhases = new long[DownloadMetrics.NUM_PHASES];
+
+    int mAttempts;
+    int mRetries;
+    int mRedirects;
+
+    /** When the download was last handed to the executor, 0 while it isn't waiting. */
+    long mQueuedAt;
+
+    DownloadTiming(long id) {
+        mId = id;
+    }
+
+    DownloadTiming(DownloadTiming other) {
+        mId = other.mId;
+        System.arraycopy(other.mPhases, 0, mPhases, 0, mPhases.length);
+        mAttempts = other.mAttempts;
+        mRetries = other.mRetries;
+        mRedirects = other.mRedirects;
+    }
+
+    /**
+     * Returns the time spent in the given phase, such as
+     * {@link DownloadMetrics#PHASE_TRANSFER}, in microseconds.
+     */
+    public long getPhaseTime(int phase) {
+        return mPhases[phase];
+    }
+
+    /** Returns how many times a {@link DownloadThread} started on this download. */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    /** Returns how many attempts ended in a retryable error. */
+    public int getRetries() {
+        return mRetries;
+    }
+
+    /** Returns how many redirects were followed. */
+    public int getRedirects() {
+        return mRedirects;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("DownloadTiming{id=").append(mId);
+        for (int i = 0; i < mPhases.length; i++) {
+            if (mPhases[i] != 0) {
+                builder.append(", ").append(DownloadMetrics.getPhaseName(i)).append('=')
+                        .append(mPhases[i] / 1000).append("ms");
+            }
+        }
+        return builder.append(", attempts=").append(mAttempts).append(", retries=")
+                .append(mRetries).append(", redirects=").append(mRedirects).append('}')
+                .toString();
+    }
+}
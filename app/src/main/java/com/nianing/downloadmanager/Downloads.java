@@ -178,6 +178,54 @@ public final class Downloads {
 
         public static final String COLUMN_ALLOW_WRITE = "allow_write";
 
+        /**
+         * The name of the column holding the number of byte ranges the download may be split
+         * into and fetched in parallel. A value of 1 keeps the single connection behavior.
+         * <P>Type: INTEGER</P>
+         * <P>Owner can Init/Read</P>
+         */
+        public static final String COLUMN_SEGMENT_COUNT = "segment_count";
+
+        /**
+         * The name of the column holding the priority of the download. Waiting downloads with a
+         * higher priority are started first.
+         * <P>Type: INTEGER</P>
+         * <P>Owner can Init/Read</P>
+         */
+        public static final String COLUMN_PRIORITY = "priority";
+
+        /**
+         * The name of the column holding the time, in System.currentTimeMillis(), by which the
+         * download should be done, or 0 for none. Among waiting downloads of the same priority,
+         * earlier deadlines are started first.
+         * <P>Type: BIGINT</P>
+         * <P>Owner can Init/Read</P>
+         */
+        public static final String COLUMN_DEADLINE = "deadline";
+
+        /**
+         * The name of the column holding the algorithm of the digest the downloaded file must
+         * match, one of SHA-256, MD5 and CRC32C, or null to not verify the file.
+         * <P>Type: TEXT</P>
+         * <P>Owner can Init/Read</P>
+         */
+        public static final String COLUMN_DIGEST_ALGORITHM = "digest_algorithm";
+
+        /**
+         * The name of the column holding the digest the downloaded file must match, in hex.
+         * <P>Type: TEXT</P>
+         * <P>Owner can Init/Read</P>
+         */
+        public static final String COLUMN_EXPECTED_DIGEST = "expected_digest";
+
+        /**
+         * The name of the column holding the state of the digest over the bytes downloaded
+         * so far, saved along with {@link #COLUMN_CURRENT_BYTES} so that a resumed download
+         * carries on digesting where it stopped.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_DIGEST_STATE = "digest_state";
+
         /**
          * This download is allowed to run.
          */
@@ -400,6 +448,12 @@ public final class Downloads {
          */
         public static final int STATUS_BLOCKED = 498;
 
+        /**
+         * This download couldn't be completed because the downloaded file
+         * didn't match its expected digest.
+         */
+        public static final int STATUS_CHECKSUM_MISMATCH = 499;
+
         public static String statusToString(int status) {
             switch (status) {
                 case STATUS_PENDING: return "PENDING";
@@ -426,6 +480,7 @@ public final class Downloads {
                 case STATUS_HTTP_EXCEPTION: return "HTTP_EXCEPTION";
                 case STATUS_TOO_MANY_REDIRECTS: return "TOO_MANY_REDIRECTS";
                 case STATUS_BLOCKED: return "BLOCKED";
+                case STATUS_CHECKSUM_MISMATCH: return "CHECKSUM_MISMATCH";
                 default: return Integer.toString(status);
             }
         }
@@ -450,5 +505,17 @@ public final class Downloads {
              */
             public static final String INSERT_KEY_PREFIX = "http_header_";
         }
+
+        /**
+         * Constants related to the byte ranges of a segmented download.
+         */
+        public static class Segments {
+            public static final String SEGMENTS_DB_TABLE = "download_segments";
+            public static final String COLUMN_DOWNLOAD_ID = "download_id";
+            public static final String COLUMN_INDEX = "seg_index";
+            public static final String COLUMN_START_BYTE = "start_byte";
+            public static final String COLUMN_END_BYTE = "end_byte";
+            public static final String COLUMN_CURRENT_BYTES = "current_bytes";
+        }
     }
 }
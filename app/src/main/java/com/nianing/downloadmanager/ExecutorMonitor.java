@@ -0,0 +1,164 @@
+package com.nianing.downloadmanager;
+
+import android.os.SystemClock;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Instrumentation of the {@link DownloadExecutor}, fed from its submission and
+ * before/after execute hooks: queue depth over time, how long tasks wait and run,
+ * rejected submissions, how often every thread is busy, and how busy each thread is.
+ * <p>
+ * Recording happens once per task start and finish, which is rare next to the work a
+ * download does, so a single lock guards everything. {@link #getSnapshot()} copies the
+ * figures under that lock and computes nothing expensive.
+ */
+class ExecutorMonitor {
+    private static ExecutorMonitor sInstance;
+
+    private final LatencyHistogram mWaitTimes = new LatencyHistogram();
+    private final LatencyHistogram mRunTimes = new LatencyHistogram();
+
+    private long mSubmitted;
+    private long mCompleted;
+    private long mRejected;
+    private long mSaturatedSubmissions;
+
+    private final long mStartTime = DownloadMetrics.now();
+
+    private int mQueueDepth;
+    private int mMaxQueueDepth;
+    /** Sum of queue depth times how long it lasted, up to {@link #mLastChange}. */
+    private long mQueueDepthIntegral;
+    private long mLastChange = mStartTime;
+
+    /** Ring of recent queue depths and when they were reached. */
+    private final int[] mDepths = new int[Constants.EXECUTOR_HISTORY_SIZE];
+    private final long[] mDepthTimes = new long[Constants.EXECUTOR_HISTORY_SIZE];
+    private int mDepthCount;
+
+    private int mActive;
+    private int mPoolSize;
+    /** Time every thread was busy, up to {@link #mLastChange}. */
+    private long mSaturatedTime;
+
+    /**
+     * Per pool thread: when it was first seen, its busy time so far, and when its current
+     * task started or 0. Threads the pool retires are dropped with them.
+     */
+    private final Map<Thread, long[]> mThreads = new WeakHashMap<Thread, long[]>();
+
+    public static synchronized ExecutorMonitor getInstance() {
+        if (sInstance == null) {
+            sInstance = new ExecutorMonitor();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Account for the time since the last change at the old queue depth and activity,
+     * then move to the given ones.
+     */
+    private void advanceLocked(long now, int queueDepth, int active, int poolSize) {
+        final long elapsed = now - mLastChange;
+        mQueueDepthIntegral += mQueueDepth * elapsed;
+        if (mPoolSize > 0 && mActive >= mPoolSize) {
+            mSaturatedTime += elapsed;
+        }
+        mLastChange = now;
+
+        if (queueDepth != mQueueDepth) {
+            final int index = mDepthCount++ % mDepths.length;
+            mDepths[index] = queueDepth;
+            mDepthTimes[index] = SystemClock.elapsedRealtime();
+        }
+        mQueueDepth = queueDepth;
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, queueDepth);
+        mActive = active;
+        mPoolSize = poolSize;
+    }
+
+    /** A task was handed to the executor, leaving the given number queued. */
+    synchronized void onSubmitted(int queueDepth, int poolSize) {
+        mSubmitted++;
+        if (queueDepth > 0) {
+            mSaturatedSubmissions++;
+        }
+        advanceLocked(DownloadMetrics.now(), queueDepth, mActive, poolSize);
+    }
+
+    /** The executor refused a task. */
+    synchronized void onRejected() {
+        mRejected++;
+    }
+
+    /** A task waited the given time and now starts on the given thread. */
+    synchronized void onStarted(Thread thread, long waitMicros, int queueDepth, int poolSize) {
+        final long now = DownloadMetrics.now();
+        mWaitTimes.record(waitMicros);
+        advanceLocked(now, queueDepth, mActive + 1, poolSize);
+
+        long[] times = mThreads.get(thread);
+        if (times == null) {
+            times = new long[] { now, 0, 0 };
+            mThreads.put(thread, times);
+        }
+        times[2] = now;
+    }
+
+    /** A task ran for the given time on the given thread and finished. */
+    synchronized void onFinished(Thread thread, long runMicros, int queueDepth, int poolSize) {
+        final long now = DownloadMetrics.now();
+        mCompleted++;
+        mRunTimes.record(runMicros);
+        advanceLocked(now, queueDepth, Math.max(0, mActive - 1), poolSize);
+
+        final long[] times = mThreads.get(thread);
+        if (times != null && times[2] != 0) {
+            times[1] += now - times[2];
+            times[2] = 0;
+        }
+    }
+
+    /**
+     * Returns the current state of the executor.
+     */
+    public synchronized ExecutorSnapshot getSnapshot() {
+        final long now = DownloadMetrics.now();
+        advanceLocked(now, mQueueDepth, mActive, mPoolSize);
+        final long lifetime = Math.max(1, now - mStartTime);
+
+        final int count = Math.min(mDepthCount, mDepths.length);
+        final int[] depths = new int[count];
+        final long[] depthTimes = new long[count];
+        for (int i = 0; i < count; i++) {
+            final int index = (mDepthCount - count + i) % mDepths.length;
+            depths[i] = mDepths[index];
+            depthTimes[i] = mDepthTimes[index];
+        }
+
+        final Map<String, Float> utilization = new HashMap<String, Float>();
+        for (Map.Entry<Thread, long[]> entry : mThreads.entrySet()) {
+            final long[] times = entry.getValue();
+            long busy = times[1];
+            if (times[2] != 0) {
+                busy += now - times[2];
+            }
+            utilization.put(entry.getKey().getName(),
+                    (float) busy / Math.max(1, now - times[0]));
+        }
+
+        return new ExecutorSnapshot(mSubmitted, mCompleted, mRejected, mSaturatedSubmissions,
+                mQueueDepth, mMaxQueueDepth, (float) mQueueDepthIntegral / lifetime, depths,
+                depthTimes, mActive, mPoolSize, (float) mSaturatedTime / lifetime,
+                mWaitTimes.copy(), mRunTimes.copy(), Collections.unmodifiableMap(utilization));
+    }
+
+    @Override
+    public String toString() {
+        return getSnapshot().toString();
+    }
+}
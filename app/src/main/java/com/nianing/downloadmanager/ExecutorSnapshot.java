@@ -0,0 +1,88 @@
+package com.nianing.downloadmanager;
+
+import java.util.Map;
+
+/**
+ * The state of the {@link DownloadExecutor} at one point in time, as taken by
+ * {@link DownloadManager#getExecutorSnapshot()}. Durations are in microseconds, counts
+ * and averages since the process started.
+ */
+public class ExecutorSnapshot {
+    /** Tasks handed to the executor. */
+    public final long mSubmitted;
+
+    /** Tasks that finished running. */
+    public final long mCompleted;
+
+    /** Tasks the executor refused, because it was shut down. */
+    public final long mRejected;
+
+    /** Tasks that had to wait in the queue because every thread was busy. */
+    public final long mSaturatedSubmissions;
+
+    /** Tasks waiting in the queue when the snapshot was taken. */
+    public final int mQueueDepth;
+
+    /** The most tasks that were ever waiting at once. */
+    public final int mMaxQueueDepth;
+
+    /** The number of tasks waiting, averaged over time. */
+    public final float mMeanQueueDepth;
+
+    /**
+     * Recent queue depths, oldest first, each with the {@link android.os.SystemClock}
+     * elapsed realtime in ms it was reached at in {@link #mQueueDepthTimes}.
+     */
+    public final int[] mQueueDepths;
+    public final long[] mQueueDepthTimes;
+
+    /** Tasks running when the snapshot was taken. */
+    public final int mActive;
+
+    /** The size of the pool when the snapshot was taken. */
+    public final int mPoolSize;
+
+    /** Share of time every thread of the pool was busy, between 0 and 1. */
+    public final float mSaturation;
+
+    /** Time tasks spent in the queue. */
+    public final LatencyHistogram mWaitTimes;
+
+    /** Time tasks spent running. */
+    public final LatencyHistogram mRunTimes;
+
+    /** Share of its lifetime each live pool thread spent running tasks, by thread name. */
+    public final Map<String, Float> mThreadUtilization;
+
+    ExecutorSnapshot(long submitted, long completed, long rejected, long saturatedSubmissions,
+            int queueDepth, int maxQueueDepth, float meanQueueDepth, int[] queueDepths,
+            long[] queueDepthTimes, int active, int poolSize, float saturation,
+            LatencyHistogram waitTimes, LatencyHistogram runTimes,
+            Map<String, Float> threadUtilization) {
+        mSubmitted = submitted;
+        mCompleted = completed;
+        mRejected = rejected;
+        mSaturatedSubmissions = saturatedSubmissions;
+        mQueueDepth = queueDepth;
+        mMaxQueueDepth = maxQueueDepth;
+        mMeanQueueDepth = meanQueueDepth;
+        mQueueDepths = queueDepths;
+        mQueueDepthTimes = queueDepthTimes;
+        mActive = active;
+        mPoolSize = poolSize;
+        mSaturation = saturation;
+        mWaitTimes = waitTimes;
+        mRunTimes = runTimes;
+        mThreadUtilization = threadUtilization;
+    }
+
+    @Override
+    public String toString() {
+        return "ExecutorSnapshot{submitted=" + mSubmitted + ", completed=" + mCompleted
+                + ", rejected=" + mRejected + ", saturatedSubmissions=" + mSaturatedSubmissions
+                + ", queue=" + mQueueDepth + " (max " + mMaxQueueDepth + ", mean "
+                + mMeanQueueDepth + "), active=" + mActive + "/" + mPoolSize
+                + ", saturation=" + mSaturation + ", wait=" + mWaitTimes + ", run=" + mRunTimes
+                + ", threads=" + mThreadUtilization + "}";
+    }
+}
@@ -0,0 +1,152 @@
+package com.nianing.downloadmanager;
+
+import android.util.Pair;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The HTTP client used by {@link DownloadThread}s. The default,
+ * {@link UrlConnectionTransport}, is built on {@link java.net.HttpURLConnection}; another
+ * client, or an in-process fake for tests and benchmarks, can be plugged in with
+ * {@link DownloadManager#setHttpTransport(HttpTransport)}.
+ * <p>
+ * A transport sends a single GET request and hands back the response as soon as its
+ * headers are in. It must not follow redirects, nor transparently decompress the body;
+ * downloads handle both themselves. Implementations are called from many threads at once.
+ */
+public interface HttpTransport {
+
+    /**
+     * Send the given request and wait for the status line and headers of its response.
+     *
+     * @throws IOException if no response could be had
+     */
+    Response execute(Request request) throws IOException;
+
+    /**
+     * A GET request for a URL, with headers and timeouts.
+     */
+    class Request {
+        private final URL mUrl;
+        private final List<Pair<String, String>> mHeaders = new ArrayList<Pair<String, String>>();
+        private int mConnectTimeout;
+        private int mReadTimeout;
+        private final long[] mTimings = new long[DownloadMetrics.NUM_PHASES];
+
+        public Request(URL url) {
+            mUrl = url;
+            Arrays.fill(mTimings, -1);
+        }
+
+        public URL getUrl() {
+            return mUrl;
+        }
+
+        /**
+         * Add a header, keeping any other values of the same header.
+         */
+        public void addHeader(String name, String value) {
+            mHeaders.add(Pair.create(name, value));
+        }
+
+        /**
+         * Set a header, replacing any other values of the same header.
+         */
+        public void setHeader(String name, String value) {
+            for (int i = mHeaders.size() - 1; i >= 0; i--) {
+                if (mHeaders.get(i).first.equalsIgnoreCase(name)) {
+                    mHeaders.remove(i);
+                }
+            }
+            addHeader(name, value);
+        }
+
+        /**
+         * Returns the first value of the given header, or null if not set.
+         */
+        public String getHeader(String name) {
+            for (Pair<String, String> header : mHeaders) {
+                if (header.first.equalsIgnoreCase(name)) {
+                    return header.second;
+                }
+            }
+            return null;
+        }
+
+        public List<Pair<String, String>> getHeaders() {
+            return Collections.unmodifiableList(mHeaders);
+        }
+
+        public void setConnectTimeout(int millis) {
+            mConnectTimeout = millis;
+        }
+
+        public int getConnectTimeout() {
+            return mConnectTimeout;
+        }
+
+        public void setReadTimeout(int millis) {
+            mReadTimeout = millis;
+        }
+
+        public int getReadTimeout() {
+            return mReadTimeout;
+        }
+
+        /**
+         * Record how long a phase of this request took, in microseconds: one of
+         * {@link DownloadMetrics#PHASE_DNS}, {@link DownloadMetrics#PHASE_CONNECT},
+         * {@link DownloadMetrics#PHASE_TLS} or {@link DownloadMetrics#PHASE_FIRST_BYTE}.
+         * Transports measure whichever of these they can tell apart.
+         */
+        public void setTiming(int phase, long micros) {
+            mTimings[phase] = micros;
+        }
+
+        /**
+         * Returns how long a phase of this request took, in microseconds, or -1 if the
+         * transport didn't measure it.
+         */
+        public long getTiming(int phase) {
+            return mTimings[phase];
+        }
+    }
+
+    /**
+     * The response to a {@link Request}. Every response must be released exactly once.
+     */
+    interface Response {
+        /** The HTTP status code. */
+        int getCode();
+
+        /** The HTTP reason phrase, or null. */
+        String getMessage();
+
+        /** The first value of the given response header, or null if absent. */
+        String getHeader(String name);
+
+        /** The response body, streamed from the network. */
+        InputStream getBody() throws IOException;
+
+        /**
+         * Done with this response.
+         *
+         * @param consumed if the body was read to the end and its stream closed, so that
+         *            the connection may be used for another request
+         */
+        void release(boolean consumed);
+
+        /**
+         * Abort this response, making any call blocked on it fail with an
+         * {@link IOException}. May be called from any thread, and before or after
+         * {@link #release(boolean)}.
+         */
+        void cancel();
+    }
+}
@@ -0,0 +1,142 @@
+package com.nianing.downloadmanager;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds, recorded without locking.
+ * <p>
+ * Like an HDR histogram, buckets are log-linear: values below 2^{@link #SUB_BUCKET_BITS}
+ * get a bucket each, and every power of two above is split into 2^{@link #SUB_BUCKET_BITS}
+ * equal buckets, so any value is reported within about 3% across the whole range of
+ * one microsecond to several days, in a fixed 9 KB of counters. Larger values are
+ * clamped into the last bucket.
+ * <p>
+ * Reads may run concurrently with recording; a value recorded meanwhile may then be
+ * missing from some of the figures. Use {@link #copy()} for a consistent view.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Highest power of two tracked; about 12 days in microseconds. */
+    private static final int MAX_MAGNITUDE = 40;
+    private static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+
+    private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Record one value, in microseconds. Negative values are recorded as 0.
+     */
+    public void record(long micros) {
+        final long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+        mCounts.incrementAndGet(getBucket(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    private static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /** Returns the highest value that falls into the given bucket. */
+    private static long getBucketLimit(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /** Returns the largest value recorded, in microseconds. */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /** Returns the mean of the values recorded, in microseconds, or 0 if none were. */
+    public long getMean() {
+        final long count = mCount.get();
+        return count > 0 ? mSum.get() / count : 0;
+    }
+
+    /**
+     * Returns the value that the given percentage of recorded values is at or below, in
+     * microseconds, or 0 if none were recorded.
+     *
+     * @param percentile between 0 and 100
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += mCounts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(getBucketLimit(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Returns a copy of this histogram, unaffected by later recording.
+     */
+    public LatencyHistogram copy() {
+        final LatencyHistogram copy = new LatencyHistogram();
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            final long c = mCounts.get(i);
+            copy.mCounts.set(i, c);
+            count += c;
+        }
+        copy.mCount.set(count);
+        copy.mSum.set(mSum.get());
+        copy.mMax.set(mMax.get());
+        return copy;
+    }
+
+    /**
+     * Forget every value recorded so far.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{count=" + getCount() + ", mean=" + getMean()
+                + "us, p50=" + getPercentile(50) + "us, p99=" + getPercentile(99)
+                + "us, max=" + getMax() + "us}";
+    }
+}
@@ -0,0 +1,264 @@
+package com.nianing.downloadmanager;
+
+import android.content.ContentValues;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Write-behind journal for download state. {@link DownloadThread}s record their byte
+ * counts here, and {@link DownloadStore} the other columns it changes in memory,
+ * instead of updating {@link DownloadProvider} directly; the latest value of each
+ * column per download (and per segment) is kept in memory and all of them are written
+ * in a single transaction once every flush interval, which also means observers are
+ * only notified once per batch rather than once per download per progress step.
+ * <p>
+ * The flush interval trades durability for write load: after a crash at most one
+ * interval of progress is lost and re-fetched. An interval of 0 writes every record
+ * through immediately. Final progress must be persisted with {@link #flush()} before
+ * a download records its final status. Until a record is written, rows read from the
+ * provider are stale; {@link #applyPending(DownloadInfo)} brings them up to date. A
+ * batch that fails to be written is kept and tried again after the flush interval.
+ */
+class ProgressJournal {
+    private static final String TAG = "ProgressJournal";
+    private static final int MSG_FLUSH = 1;
+
+    private static volatile long sFlushInterval = Constants.PROGRESS_FLUSH_INTERVAL;
+
+    private final DownloadProvider mDownloadProvider;
+
+    /** Latest value per column per download id, not yet written. */
+    private Map<Long, ContentValues> mPendingValues = new HashMap<Long, ContentValues>();
+    /** Latest byte count per segment index per download id, not yet written. */
+    private Map<Long, Map<Integer, Long>> mPendingSegments = new HashMap<Long, Map<Integer, Long>>();
+
+    /** Values of the batch being written, still newer than the rows until it commits. */
+    private Map<Long, ContentValues> mFlushingValues;
+
+    /** Serializes writes, so an older batch can never land after a newer one. */
+    private final Object mFlushLock = new Object();
+
+    private HandlerThread mFlushThread;
+    private Handler mFlushHandler;
+
+    public ProgressJournal(DownloadProvider downloadProvider) {
+        mDownloadProvider = downloadProvider;
+    }
+
+    /**
+     * Set how long progress may stay in memory before being written, in ms.
+     */
+    public static void setFlushInterval(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Invalid flush interval: " + millis);
+        }
+        sFlushInterval = millis;
+    }
+
+    public static long getFlushInterval() {
+        return sFlushInterval;
+    }
+
+    /**
+     * Record the number of bytes downloaded so far.
+     */
+    public void recordProgress(long id, long currentBytes) {
+        recordProgress(id, currentBytes, null);
+    }
+
+    /**
+     * Record the number of bytes downloaded so far along with the state of the digest over
+     * them, which must land together for a resumed download to carry on digesting.
+     *
+     * @param digestState state from {@link StreamingDigest#saveState()}, or null
+     */
+    public void recordProgress(long id, long currentBytes, String digestState) {
+        final ContentValues values = new ContentValues(2);
+        values.put(Downloads.Columns.COLUMN_CURRENT_BYTES, currentBytes);
+        if (digestState != null) {
+            values.put(Downloads.Columns.COLUMN_DIGEST_STATE, digestState);
+        }
+        recordValues(id, values);
+    }
+
+    /**
+     * Record new values for some columns of a download, replacing any values recorded
+     * earlier for the same columns.
+     */
+    public void recordValues(long id, ContentValues values) {
+        synchronized (this) {
+            final ContentValues pending = mPendingValues.get(id);
+            if (pending == null) {
+                mPendingValues.put(id, new ContentValues(values));
+            } else {
+                pending.putAll(values);
+            }
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Record the number of bytes fetched so far for one range of a segmented download.
+     */
+    public void recordSegmentProgress(long id, int index, long currentBytes) {
+        synchronized (this) {
+            Map<Integer, Long> segments = mPendingSegments.get(id);
+            if (segments == null) {
+                segments = new HashMap<Integer, Long>();
+                mPendingSegments.put(id, segments);
+            }
+            segments.put(index, currentBytes);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Forget the values recorded for the given downloads in any of the given columns,
+     * which are about to be written to the provider directly, so that a later flush
+     * can't overwrite that write with older state. Call while holding the
+     * {@link #getFlushLock() flush lock}, so that no batch is being written meanwhile.
+     */
+    public synchronized void discardPending(long[] ids, ContentValues values) {
+        for (long id : ids) {
+            final ContentValues pending = mPendingValues.get(id);
+            if (pending == null) {
+                continue;
+            }
+            for (Map.Entry<String, Object> entry : values.valueSet()) {
+                pending.remove(entry.getKey());
+            }
+            if (pending.size() == 0) {
+                mPendingValues.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Apply the values recorded for the given download but not written yet, so that
+     * an info just read from the provider reflects the latest state.
+     */
+    public void applyPending(DownloadInfo info) {
+        synchronized (this) {
+            if (mFlushingValues != null) {
+                final ContentValues flushing = mFlushingValues.get(info.mId);
+                if (flushing != null) {
+                    info.applyValues(flushing);
+                }
+            }
+            final ContentValues pending = mPendingValues.get(info.mId);
+            if (pending != null) {
+                info.applyValues(pending);
+            }
+        }
+    }
+
+    /**
+     * Returns the lock held while a batch is written. Reading rows and applying
+     * {@link #applyPending} while holding it can't miss a batch in between.
+     */
+    public Object getFlushLock() {
+        return mFlushLock;
+    }
+
+    /**
+     * Synchronously write everything recorded so far. If writing fails, the batch is
+     * kept for the next flush, which is scheduled, and the failure is rethrown.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            final Map<Long, ContentValues> values;
+            final Map<Long, Map<Integer, Long>> segments;
+            synchronized (this) {
+                if (mPendingValues.isEmpty() && mPendingSegments.isEmpty()) {
+                    return;
+                }
+                values = mPendingValues;
+                segments = mPendingSegments;
+                mFlushingValues = values;
+                mPendingValues = new HashMap<Long, ContentValues>();
+                mPendingSegments = new HashMap<Long, Map<Integer, Long>>();
+            }
+            boolean written = false;
+            try {
+                mDownloadProvider.checkpoint(values, segments);
+                written = true;
+            } finally {
+                synchronized (this) {
+                    mFlushingValues = null;
+                    if (!written) {
+                        restoreLocked(values, segments);
+                    }
+                }
+                if (!written) {
+                    // Even without an interval, don't spin on a database that keeps failing
+                    final long interval = sFlushInterval;
+                    scheduleFlushDelayed(interval > 0 ? interval
+                            : Constants.PROGRESS_FLUSH_INTERVAL);
+                }
+            }
+        }
+    }
+
+    /**
+     * Put a batch that failed to be written back in front of whatever was recorded since,
+     * so that newer values still win.
+     */
+    private void restoreLocked(Map<Long, ContentValues> values,
+            Map<Long, Map<Integer, Long>> segments) {
+        for (Map.Entry<Long, ContentValues> entry : values.entrySet()) {
+            final ContentValues newer = mPendingValues.get(entry.getKey());
+            if (newer != null) {
+                entry.getValue().putAll(newer);
+            }
+            mPendingValues.put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<Long, Map<Integer, Long>> entry : segments.entrySet()) {
+            final Map<Integer, Long> newer = mPendingSegments.get(entry.getKey());
+            if (newer != null) {
+                entry.getValue().putAll(newer);
+            }
+            mPendingSegments.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void scheduleFlush() {
+        final long interval = sFlushInterval;
+        if (interval == 0) {
+            flush();
+            return;
+        }
+        scheduleFlushDelayed(interval);
+    }
+
+    private synchronized void scheduleFlushDelayed(long delay) {
+        if (mFlushHandler == null) {
+            mFlushThread = new HandlerThread(Constants.TAG + "-ProgressJournal",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            mFlushThread.start();
+            mFlushHandler = new Handler(mFlushThread.getLooper(), mFlushCallback);
+        }
+        // Keep the pending flush, everything recorded until then joins its batch
+        if (!mFlushHandler.hasMessages(MSG_FLUSH)) {
+            mFlushHandler.sendEmptyMessageDelayed(MSG_FLUSH, delay);
+        }
+    }
+
+    private final Handler.Callback mFlushCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                // The batch was kept and another flush scheduled
+                Log.w(TAG, "Failed to write progress", e);
+            }
+            return true;
+        }
+    };
+}
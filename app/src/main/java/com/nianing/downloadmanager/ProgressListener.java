@@ -0,0 +1,9 @@
+package com.nianing.downloadmanager;
+
+/**
+ * Receives samples of the progress of a download, see
+ * {@link DownloadManager#subscribeProgress(long, long, ProgressListener)}.
+ */
+public interface ProgressListener {
+    void onProgress(DownloadProgress progress);
+}
@@ -0,0 +1,147 @@
+package com.nianing.downloadmanager;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Streams the progress of running downloads to {@link ProgressListener}s, sampled at an
+ * interval each listener chooses. {@link DownloadThread}s report every chunk they read
+ * from their in-memory state; a sample is only built, and posted to the listener's
+ * handler, once its interval has passed, so nothing is read from or written to the
+ * database and a download nobody subscribed to costs a single map lookup per chunk.
+ */
+public class ProgressMonitor {
+    private static ProgressMonitor sInstance;
+
+    private static class Subscription {
+        final ProgressListener mListener;
+        final long mInterval;
+        final Handler mHandler;
+        volatile long mNextSample;
+
+        Subscription(ProgressListener listener, long interval, Handler handler) {
+            mListener = listener;
+            mInterval = interval;
+            mHandler = handler;
+        }
+
+        void deliver(final DownloadProgress progress) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onProgress(progress);
+                }
+            });
+        }
+    }
+
+    /** Compared against by value, to drop only subscription lists that are empty. */
+    private static final CopyOnWriteArrayList<Subscription> EMPTY =
+            new CopyOnWriteArrayList<Subscription>();
+
+    private final ConcurrentHashMap<Long, CopyOnWriteArrayList<Subscription>> mSubscriptions =
+            new ConcurrentHashMap<Long, CopyOnWriteArrayList<Subscription>>();
+
+    public static synchronized ProgressMonitor getInstance() {
+        if (sInstance == null) {
+            sInstance = new ProgressMonitor();
+        }
+        return sInstance;
+    }
+
+    private ProgressMonitor() {
+    }
+
+    /**
+     * Send the progress of the given download to the listener, at most once per interval
+     * while it is running, and once more when it stops.
+     *
+     * @param interval the shortest time between two samples in ms
+     * @param handler the handler to call the listener on, or null for the main thread
+     */
+    public void subscribe(long id, long interval, ProgressListener listener, Handler handler) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Invalid interval: " + interval);
+        }
+        if (handler == null) {
+            handler = new Handler(Looper.getMainLooper());
+        }
+        final Subscription subscription = new Subscription(listener, interval, handler);
+        while (true) {
+            CopyOnWriteArrayList<Subscription> subscriptions = mSubscriptions.get(id);
+            if (subscriptions == null) {
+                final CopyOnWriteArrayList<Subscription> created =
+                        new CopyOnWriteArrayList<Subscription>();
+                subscriptions = mSubscriptions.putIfAbsent(id, created);
+                if (subscriptions == null) {
+                    subscriptions = created;
+                }
+            }
+            subscriptions.add(subscription);
+            if (mSubscriptions.get(id) == subscriptions) {
+                return;
+            }
+            // The list was dropped as empty meanwhile, start over with a new one
+            subscriptions.remove(subscription);
+        }
+    }
+
+    /**
+     * Stop sending progress to the given listener, for any download.
+     */
+    public void unsubscribe(ProgressListener listener) {
+        for (Map.Entry<Long, CopyOnWriteArrayList<Subscription>> entry
+                : mSubscriptions.entrySet()) {
+            final CopyOnWriteArrayList<Subscription> subscriptions = entry.getValue();
+            for (Subscription subscription : subscriptions) {
+                if (subscription.mListener == listener) {
+                    subscriptions.remove(subscription);
+                }
+            }
+            if (subscriptions.isEmpty()) {
+                // Only removed while still empty, a concurrent subscribe keeps it
+                mSubscriptions.remove(entry.getKey(), EMPTY);
+            }
+        }
+    }
+
+    /**
+     * Progress of a running download, reported for every chunk read.
+     */
+    void onProgress(long id, long currentBytes, long totalBytes, long speed, long now) {
+        final CopyOnWriteArrayList<Subscription> subscriptions = mSubscriptions.get(id);
+        if (subscriptions == null) {
+            return;
+        }
+        DownloadProgress progress = null;
+        for (Subscription subscription : subscriptions) {
+            if (now >= subscription.mNextSample) {
+                subscription.mNextSample = now + subscription.mInterval;
+                if (progress == null) {
+                    progress = new DownloadProgress(id, currentBytes, totalBytes, speed);
+                }
+                subscription.deliver(progress);
+            }
+        }
+    }
+
+    /**
+     * A download stopped running, whatever the reason; send its last progress to every
+     * listener regardless of interval.
+     */
+    void onStopped(long id, long currentBytes, long totalBytes) {
+        final CopyOnWriteArrayList<Subscription> subscriptions = mSubscriptions.get(id);
+        if (subscriptions == null) {
+            return;
+        }
+        final DownloadProgress progress = new DownloadProgress(id, currentBytes, totalBytes, 0);
+        for (Subscription subscription : subscriptions) {
+            subscription.mNextSample = 0;
+            subscription.deliver(progress);
+        }
+    }
+}
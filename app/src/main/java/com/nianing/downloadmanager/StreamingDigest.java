@@ -0,0 +1,448 @@
+package com.nianing.downloadmanager;
+
+/**
+ * A digest computed over a download as its bytes are written, whose state can be saved
+ * along with a progress checkpoint and restored when the download resumes, so the file
+ * never has to be read back. {@link java.security.MessageDigest} can't export its state,
+ * hence the implementations here: SHA-256, MD5, and CRC32C (the Castagnoli CRC used by
+ * cloud storage services).
+ * <p>
+ * Depends on nothing from the Android framework. Not thread safe.
+ */
+abstract class StreamingDigest {
+    static final String SHA256 = "SHA-256";
+    static final String MD5 = "MD5";
+    static final String CRC32C = "CRC32C";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Bytes digested so far. */
+    protected long mLength;
+
+    /**
+     * Returns a new digest for the given algorithm, one of {@link #SHA256}, {@link #MD5}
+     * and {@link #CRC32C}, ignoring case.
+     *
+     * @throws IllegalArgumentException if the algorithm isn't supported
+     */
+    static StreamingDigest create(String algorithm) {
+        if (SHA256.equalsIgnoreCase(algorithm)) {
+            return new Sha256();
+        } else if (MD5.equalsIgnoreCase(algorithm)) {
+            return new Md5();
+        } else if (CRC32C.equalsIgnoreCase(algorithm)) {
+            return new Crc32c();
+        }
+        throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm);
+    }
+
+    /** Returns the number of bytes digested so far. */
+    long getLength() {
+        return mLength;
+    }
+
+    abstract void update(byte[] data, int offset, int count);
+
+    /**
+     * Returns the digest of everything digested so far. Digesting may continue afterwards.
+     */
+    abstract byte[] digest();
+
+    /** Forget everything digested so far. */
+    abstract void reset();
+
+    /** Returns the state of the digest, without the length. */
+    abstract byte[] getState();
+
+    /**
+     * Restore a state returned by {@link #getState()} after digesting the given number of
+     * bytes.
+     */
+    abstract void setState(long length, byte[] state);
+
+    /**
+     * Returns the state of this digest as a string, to be persisted with the progress it
+     * belongs to.
+     */
+    String saveState() {
+        final byte[] state = getState();
+        final byte[] saved = new byte[8 + state.length];
+        putLong(saved, 0, mLength, true);
+        System.arraycopy(state, 0, saved, 8, state.length);
+        return toHex(saved);
+    }
+
+    /**
+     * Continue from a state returned by {@link #saveState()}.
+     *
+     * @throws IllegalArgumentException if the state is malformed
+     */
+    void restoreState(String saved) {
+        final byte[] bytes = fromHex(saved);
+        if (bytes.length < 8) {
+            throw new IllegalArgumentException("Truncated digest state");
+        }
+        final long length = getLong(bytes, 0, true);
+        if (length < 0) {
+            throw new IllegalArgumentException("Invalid digest length: " + length);
+        }
+        final byte[] state = new byte[bytes.length - 8];
+        System.arraycopy(bytes, 8, state, 0, state.length);
+        setState(length, state);
+    }
+
+    static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd length hex string");
+        }
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            final int high = Character.digit(hex.charAt(i * 2), 16);
+            final int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid hex string");
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value, boolean bigEndian) {
+        for (int i = 0; i < 8; i++) {
+            final int shift = bigEndian ? 56 - 8 * i : 8 * i;
+            bytes[offset + i] = (byte) (value >>> shift);
+        }
+    }
+
+    private static long getLong(byte[] bytes, int offset, boolean bigEndian) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            final int shift = bigEndian ? 56 - 8 * i : 8 * i;
+            value |= (bytes[offset + i] & 0xffL) << shift;
+        }
+        return value;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value, boolean bigEndian) {
+        for (int i = 0; i < 4; i++) {
+            final int shift = bigEndian ? 24 - 8 * i : 8 * i;
+            bytes[offset + i] = (byte) (value >>> shift);
+        }
+    }
+
+    private static int getInt(byte[] bytes, int offset, boolean bigEndian) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            final int shift = bigEndian ? 24 - 8 * i : 8 * i;
+            value |= (bytes[offset + i] & 0xff) << shift;
+        }
+        return value;
+    }
+
+    /**
+     * Merkle-Damgard hash over 64 byte blocks, with the usual padding: a one bit, zeros,
+     * and the message length in bits.
+     */
+    private abstract static class BlockDigest extends StreamingDigest {
+        private static final int BLOCK_SIZE = 64;
+
+        private final boolean mBigEndian;
+        private final int[] mState;
+        private final byte[] mBuffer = new byte[BLOCK_SIZE];
+
+        BlockDigest(boolean bigEndian, int words) {
+            mBigEndian = bigEndian;
+            mState = new int[words];
+            reset();
+        }
+
+        abstract void initState(int[] state);
+
+        abstract void compress(int[] state, byte[] block, int offset);
+
+        @Override
+        void reset() {
+            mLength = 0;
+            initState(mState);
+        }
+
+        @Override
+        void update(byte[] data, int offset, int count) {
+            final int buffered = (int) (mLength % BLOCK_SIZE);
+            mLength += count;
+            if (buffered > 0) {
+                final int n = Math.min(BLOCK_SIZE - buffered, count);
+                System.arraycopy(data, offset, mBuffer, buffered, n);
+                offset += n;
+                count -= n;
+                if (buffered + n < BLOCK_SIZE) {
+                    return;
+                }
+                compress(mState, mBuffer, 0);
+            }
+            while (count >= BLOCK_SIZE) {
+                compress(mState, data, offset);
+                offset += BLOCK_SIZE;
+                count -= BLOCK_SIZE;
+            }
+            if (count > 0) {
+                System.arraycopy(data, offset, mBuffer, 0, count);
+            }
+        }
+
+        @Override
+        byte[] digest() {
+            final int[] state = mState.clone();
+            final int buffered = (int) (mLength % BLOCK_SIZE);
+            final byte[] tail = new byte[buffered < BLOCK_SIZE - 8 ? BLOCK_SIZE : 2 * BLOCK_SIZE];
+            System.arraycopy(mBuffer, 0, tail, 0, buffered);
+            tail[buffered] = (byte) 0x80;
+            putLong(tail, tail.length - 8, mLength * 8, mBigEndian);
+            for (int offset = 0; offset < tail.length; offset += BLOCK_SIZE) {
+                compress(state, tail, offset);
+            }
+            final byte[] digest = new byte[state.length * 4];
+            for (int i = 0; i < state.length; i++) {
+                putInt(digest, i * 4, state[i], mBigEndian);
+            }
+            return digest;
+        }
+
+        @Override
+        byte[] getState() {
+            final int buffered = (int) (mLength % BLOCK_SIZE);
+            final byte[] saved = new byte[mState.length * 4 + buffered];
+            for (int i = 0; i < mState.length; i++) {
+                putInt(saved, i * 4, mState[i], true);
+            }
+            System.arraycopy(mBuffer, 0, saved, mState.length * 4, buffered);
+            return saved;
+        }
+
+        @Override
+        void setState(long length, byte[] saved) {
+            final int buffered = (int) (length % BLOCK_SIZE);
+            if (saved.length != mState.length * 4 + buffered) {
+                throw new IllegalArgumentException("Digest state doesn't match its length");
+            }
+            for (int i = 0; i < mState.length; i++) {
+                mState[i] = getInt(saved, i * 4, true);
+            }
+            System.arraycopy(saved, mState.length * 4, mBuffer, 0, buffered);
+            mLength = length;
+        }
+    }
+
+    /** SHA-256, as specified in FIPS 180-4. */
+    private static class Sha256 extends BlockDigest {
+        private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4,
+            0xab1c5ed5, 0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe,
+            0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f,
+            0x4a7484aa, 0x5cb0a9dc, 0x76f988da, 0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+            0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967, 0x27b70a85, 0x2e1b2138, 0x4d2c6dfc,
+            0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b,
+            0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070, 0x19a4c116,
+            0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7,
+            0xc67178f2
+        };
+
+        private final int[] mSchedule = new int[64];
+
+        Sha256() {
+            super(true, 8);
+        }
+
+        @Override
+        void initState(int[] state) {
+            state[0] = 0x6a09e667;
+            state[1] = 0xbb67ae85;
+            state[2] = 0x3c6ef372;
+            state[3] = 0xa54ff53a;
+            state[4] = 0x510e527f;
+            state[5] = 0x9b05688c;
+            state[6] = 0x1f83d9ab;
+            state[7] = 0x5be0cd19;
+        }
+
+        @Override
+        void compress(int[] state, byte[] block, int offset) {
+            final int[] w = mSchedule;
+            for (int i = 0; i < 16; i++) {
+                w[i] = getInt(block, offset + i * 4, true);
+            }
+            for (int i = 16; i < 64; i++) {
+                final int s0 = Integer.rotateRight(w[i - 15], 7)
+                        ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+                final int s1 = Integer.rotateRight(w[i - 2], 17)
+                        ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+                w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+            }
+
+            int a = state[0], b = state[1], c = state[2], d = state[3];
+            int e = state[4], f = state[5], g = state[6], h = state[7];
+            for (int i = 0; i < 64; i++) {
+                final int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11)
+                        ^ Integer.rotateRight(e, 25);
+                final int ch = (e & f) ^ (~e & g);
+                final int t1 = h + s1 + ch + K[i] + w[i];
+                final int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13)
+                        ^ Integer.rotateRight(a, 22);
+                final int maj = (a & b) ^ (a & c) ^ (b & c);
+                final int t2 = s0 + maj;
+                h = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+            state[0] += a;
+            state[1] += b;
+            state[2] += c;
+            state[3] += d;
+            state[4] += e;
+            state[5] += f;
+            state[6] += g;
+            state[7] += h;
+        }
+    }
+
+    /** MD5, as specified in RFC 1321. */
+    private static class Md5 extends BlockDigest {
+        private static final int[] SHIFTS = {
+            7, 12, 17, 22, 5, 9, 14, 20, 4, 11, 16, 23, 6, 10, 15, 21
+        };
+
+        private static final int[] K = new int[64];
+
+        static {
+            for (int i = 0; i < 64; i++) {
+                K[i] = (int) (long) Math.floor(Math.abs(Math.sin(i + 1)) * 4294967296.0);
+            }
+        }
+
+        private final int[] mWords = new int[16];
+
+        Md5() {
+            super(false, 4);
+        }
+
+        @Override
+        void initState(int[] state) {
+            state[0] = 0x67452301;
+            state[1] = 0xefcdab89;
+            state[2] = 0x98badcfe;
+            state[3] = 0x10325476;
+        }
+
+        @Override
+        void compress(int[] state, byte[] block, int offset) {
+            final int[] m = mWords;
+            for (int i = 0; i < 16; i++) {
+                m[i] = getInt(block, offset + i * 4, false);
+            }
+
+            int a = state[0], b = state[1], c = state[2], d = state[3];
+            for (int i = 0; i < 64; i++) {
+                final int f;
+                final int g;
+                if (i < 16) {
+                    f = (b & c) | (~b & d);
+                    g = i;
+                } else if (i < 32) {
+                    f = (d & b) | (~d & c);
+                    g = (5 * i + 1) % 16;
+                } else if (i < 48) {
+                    f = b ^ c ^ d;
+                    g = (3 * i + 5) % 16;
+                } else {
+                    f = c ^ (b | ~d);
+                    g = (7 * i) % 16;
+                }
+                final int shift = SHIFTS[(i / 16) * 4 + i % 4];
+                final int rotated = Integer.rotateLeft(a + f + K[i] + m[g], shift);
+                a = d;
+                d = c;
+                c = b;
+                b = b + rotated;
+            }
+            state[0] += a;
+            state[1] += b;
+            state[2] += c;
+            state[3] += d;
+        }
+    }
+
+    /** CRC-32C, the CRC with the Castagnoli polynomial, as in RFC 3720. */
+    private static class Crc32c extends StreamingDigest {
+        private static final int[] TABLE = new int[256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int crc = i;
+                for (int bit = 0; bit < 8; bit++) {
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82f63b78 : crc >>> 1;
+                }
+                TABLE[i] = crc;
+            }
+        }
+
+        private int mCrc;
+
+        Crc32c() {
+            reset();
+        }
+
+        @Override
+        void reset() {
+            mLength = 0;
+            mCrc = 0xffffffff;
+        }
+
+        @Override
+        void update(byte[] data, int offset, int count) {
+            int crc = mCrc;
+            for (int i = offset; i < offset + count; i++) {
+                crc = (crc >>> 8) ^ TABLE[(crc ^ data[i]) & 0xff];
+            }
+            mCrc = crc;
+            mLength += count;
+        }
+
+        @Override
+        byte[] digest() {
+            final byte[] digest = new byte[4];
+            putInt(digest, 0, ~mCrc, true);
+            return digest;
+        }
+
+        @Override
+        byte[] getState() {
+            final byte[] saved = new byte[4];
+            putInt(saved, 0, mCrc, true);
+            return saved;
+        }
+
+        @Override
+        void setState(long length, byte[] saved) {
+            if (saved.length != 4) {
+                throw new IllegalArgumentException("Invalid CRC32C state");
+            }
+            mCrc = getInt(saved, 0, true);
+            mLength = length;
+        }
+    }
+}
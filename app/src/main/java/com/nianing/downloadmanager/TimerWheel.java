@@ -0,0 +1,193 @@
+package com.nianing.downloadmanager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hashed timer wheel of download ids, keyed by the wall clock time they are due.
+ * Used by {@link DownloadService} to wake up exactly when the earliest
+ * {@link Downloads.Columns#STATUS_WAITING_TO_RETRY} download may restart.
+ * <p>
+ * Each id lives in the slot of the tick its deadline falls in, on a doubly linked
+ * list, and is indexed by id, so {@link #schedule} and {@link #cancel} are O(1).
+ * Deadlines further away than one rotation simply stay in their slot until their
+ * rotation comes around. Not thread safe; callers synchronize.
+ */
+class TimerWheel {
+
+    private static class Entry {
+        final long mId;
+        long mDeadline;
+        long mTick;
+        Entry mPrev;
+        Entry mNext;
+
+        Entry(long id) {
+            mId = id;
+        }
+    }
+
+    private final long mTickMillis;
+    private final Entry[] mSlots;
+    private final Map<Long, Entry> mEntries = new HashMap<Long, Entry>();
+
+    /** First tick that hasn't been expired yet. */
+    private long mCurrentTick = -1;
+
+    /** Cached result of {@link #nextDeadline()}, or -1 when it must be recomputed. */
+    private long mNextDeadline = Long.MAX_VALUE;
+
+    /**
+     * @param tickMillis resolution of the wheel, in ms
+     * @param slots number of ticks in one rotation of the wheel
+     */
+    public TimerWheel(long tickMillis, int slots) {
+        mTickMillis = tickMillis;
+        mSlots = new Entry[slots];
+    }
+
+    /**
+     * Schedule the given id at the given deadline, replacing any deadline it had.
+     */
+    public void schedule(long id, long deadline) {
+        Entry entry = mEntries.get(id);
+        if (entry != null) {
+            if (entry.mDeadline == deadline) {
+                return;
+            }
+            unlink(entry);
+            // Moving the earliest entry later leaves the cached minimum stale
+            if (entry.mDeadline == mNextDeadline) {
+                mNextDeadline = -1;
+            }
+        } else {
+            entry = new Entry(id);
+            mEntries.put(id, entry);
+        }
+        entry.mDeadline = deadline;
+        // Anything already overdue goes into the next tick to be expired
+        entry.mTick = Math.max(deadline / mTickMillis, mCurrentTick);
+        link(entry);
+        if (mNextDeadline != -1) {
+            mNextDeadline = Math.min(mNextDeadline, deadline);
+        }
+    }
+
+    /**
+     * Remove the given id from the wheel.
+     *
+     * @return if the id was scheduled
+     */
+    public boolean cancel(long id) {
+        final Entry entry = mEntries.remove(id);
+        if (entry == null) {
+            return false;
+        }
+        unlink(entry);
+        if (entry.mDeadline == mNextDeadline) {
+            mNextDeadline = -1;
+        }
+        return true;
+    }
+
+    /**
+     * Remove and return every id whose deadline is at or before the given time.
+     */
+    public List<Long> expire(long now) {
+        final List<Long> expired = new ArrayList<Long>();
+        final long nowTick = now / mTickMillis;
+        if (mCurrentTick < 0) {
+            mCurrentTick = nowTick;
+        }
+        // No need to visit a slot twice when we fell more than a rotation behind
+        final long firstTick = Math.max(mCurrentTick, nowTick - mSlots.length + 1);
+        for (long tick = firstTick; tick <= nowTick; tick++) {
+            Entry entry = mSlots[slotOf(tick)];
+            while (entry != null) {
+                final Entry next = entry.mNext;
+                if (entry.mDeadline <= now) {
+                    unlink(entry);
+                    mEntries.remove(entry.mId);
+                    expired.add(entry.mId);
+                }
+                entry = next;
+            }
+        }
+        // Entries of the current tick that aren't due yet are found again next time
+        mCurrentTick = nowTick;
+        // A cached minimum that is already due but expired nothing is stale
+        if (!expired.isEmpty() || mNextDeadline <= now) {
+            mNextDeadline = -1;
+        }
+        return expired;
+    }
+
+    /**
+     * Returns the earliest deadline on the wheel, or {@link Long#MAX_VALUE} if empty.
+     * Scans forward at most one rotation from the current tick; only when every
+     * entry is further away than that does it fall back to visiting each entry.
+     */
+    public long nextDeadline() {
+        if (mNextDeadline != -1) {
+            return mNextDeadline;
+        }
+        long next = Long.MAX_VALUE;
+        if (!mEntries.isEmpty()) {
+            final long startTick = Math.max(mCurrentTick, 0);
+            for (long tick = startTick; tick < startTick + mSlots.length; tick++) {
+                for (Entry entry = mSlots[slotOf(tick)]; entry != null; entry = entry.mNext) {
+                    if (entry.mTick <= tick) {
+                        next = Math.min(next, entry.mDeadline);
+                    }
+                }
+                if (next != Long.MAX_VALUE) {
+                    break;
+                }
+            }
+            if (next == Long.MAX_VALUE) {
+                for (Entry entry : mEntries.values()) {
+                    next = Math.min(next, entry.mDeadline);
+                }
+            }
+        }
+        mNextDeadline = next;
+        return next;
+    }
+
+    public boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    private int slotOf(long tick) {
+        return (int) (tick % mSlots.length);
+    }
+
+    private void link(Entry entry) {
+        final int slot = slotOf(entry.mTick);
+        entry.mPrev = null;
+        entry.mNext = mSlots[slot];
+        if (entry.mNext != null) {
+            entry.mNext.mPrev = entry;
+        }
+        mSlots[slot] = entry;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.mPrev != null) {
+            entry.mPrev.mNext = entry.mNext;
+        } else {
+            mSlots[slotOf(entry.mTick)] = entry.mNext;
+        }
+        if (entry.mNext != null) {
+            entry.mNext.mPrev = entry.mPrev;
+        }
+        entry.mPrev = null;
+        entry.mNext = null;
+    }
+}
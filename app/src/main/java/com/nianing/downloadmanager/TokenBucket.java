@@ -0,0 +1,72 @@
+package com.nianing.downloadmanager;
+
+/**
+ * Token bucket limiting a byte stream to a rate, with bursts of up to
+ * {@link Constants#BANDWIDTH_BURST_TIME} worth of tokens. Bytes are charged after they
+ * were transferred, a whole buffer at a time, and may drive the bucket into debt; the
+ * caller then waits until the debt is paid off before transferring more. Thread safe.
+ */
+class TokenBucket {
+    /** Bytes per second, 0 for no limit. */
+    private long mRate;
+    private double mTokens;
+    private long mLastRefill;
+
+    public TokenBucket(long rate, long now) {
+        mLastRefill = now;
+        setRate(rate, now);
+    }
+
+    /**
+     * Change the rate from the given time on. Tokens earned until then are still
+     * credited at the old rate.
+     */
+    public synchronized void setRate(long rate, long now) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("Invalid rate: " + rate);
+        }
+        final boolean wasUnlimited = mRate == 0;
+        if (!wasUnlimited) {
+            refill(now);
+        }
+        mRate = rate;
+        mLastRefill = now;
+        if (wasUnlimited) {
+            // Start full, so a limit set mid-transfer doesn't stall it
+            mTokens = getCapacity();
+        } else {
+            // Keep what is left, or owed, so changing the rate grants no extra burst
+            mTokens = Math.min(mTokens, getCapacity());
+        }
+    }
+
+    public synchronized long getRate() {
+        return mRate;
+    }
+
+    /**
+     * Take the given number of bytes out of the bucket.
+     *
+     * @return how long to wait before transferring more, in ms
+     */
+    public synchronized long charge(long bytes, long now) {
+        if (mRate == 0) {
+            return 0;
+        }
+        refill(now);
+        mTokens -= bytes;
+        return mTokens >= 0 ? 0 : (long) Math.ceil(-mTokens * 1000 / mRate);
+    }
+
+    private void refill(long now) {
+        final long elapsed = now - mLastRefill;
+        if (elapsed > 0) {
+            mTokens = Math.min(getCapacity(), mTokens + (double) elapsed * mRate / 1000);
+            mLastRefill = now;
+        }
+    }
+
+    private double getCapacity() {
+        return (double) mRate * Constants.BANDWIDTH_BURST_TIME / 1000;
+    }
+}
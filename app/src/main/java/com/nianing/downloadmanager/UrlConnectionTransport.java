@@ -0,0 +1,94 @@
+package com.nianing.downloadmanager;
+
+import android.util.Pair;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * The default {@link HttpTransport}, built on {@link HttpURLConnection}. Connections are
+ * kept alive between requests by the platform, see {@link ConnectionStats}. The connect and
+ * the wait for the status line are timed for {@link DownloadMetrics}; the platform resolves
+ * the host inside the connect, so {@link DownloadMetrics#PHASE_DNS} isn't recorded apart.
+ */
+class UrlConnectionTransport implements HttpTransport {
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        final URL url = request.getUrl();
+        ConnectionStats.getInstance().onRequest();
+
+        final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            conn.setInstanceFollowRedirects(false);
+            conn.setConnectTimeout(request.getConnectTimeout());
+            conn.setReadTimeout(request.getReadTimeout());
+            for (Pair<String, String> header : request.getHeaders()) {
+                conn.addRequestProperty(header.first, header.second);
+            }
+
+            // Returns at once if a kept-alive connection is reused
+            long start = DownloadMetrics.now();
+            conn.connect();
+            request.setTiming(conn instanceof HttpsURLConnection
+                    ? DownloadMetrics.PHASE_TLS : DownloadMetrics.PHASE_CONNECT,
+                    DownloadMetrics.now() - start);
+
+            start = DownloadMetrics.now();
+            final int code = conn.getResponseCode();
+            request.setTiming(DownloadMetrics.PHASE_FIRST_BYTE, DownloadMetrics.now() - start);
+            return new UrlConnectionResponse(conn, code);
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        }
+    }
+
+    private static class UrlConnectionResponse implements Response {
+        private final HttpURLConnection mConn;
+        private final int mCode;
+
+        UrlConnectionResponse(HttpURLConnection conn, int code) {
+            mConn = conn;
+            mCode = code;
+        }
+
+        @Override
+        public int getCode() {
+            return mCode;
+        }
+
+        @Override
+        public String getMessage() {
+            try {
+                return mConn.getResponseMessage();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mConn.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return mConn.getInputStream();
+        }
+
+        @Override
+        public void release(boolean consumed) {
+            ConnectionStats.getInstance().release(mConn, consumed);
+        }
+
+        @Override
+        public void cancel() {
+            mConn.disconnect();
+        }
+    }
+}
@@ -14,15 +14,15 @@ import android.widget.BaseAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
 
-import com.nianing.downloadmanager.DownloadInfo;
 import com.nianing.downloadmanager.DownloadManager;
+import com.nianing.downloadmanager.DownloadSnapshot;
 import com.nianing.downloadmanager.Downloads;
 import com.nianing.downloadmanager.R;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 
 public class MainActivity extends Activity implements View.OnClickListener {
@@ -31,7 +31,8 @@ public class MainActivity extends Activity implements View.OnClickListener {
     private DownLoadAdapter mAdapter;
     private TextView tvAddTask;
     private DownloadManager mDownloadManager;
-    private List<DownloadInfo> mList;
+    private final Map<Long, DownloadSnapshot> mDownloads = new LinkedHashMap<Long, DownloadSnapshot>();
+    private List<DownloadSnapshot> mList;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -42,12 +43,13 @@ public class MainActivity extends Activity implements View.OnClickListener {
 
     private void init() {
         IntentFilter downIntentFilter = new IntentFilter();
-        downIntentFilter.addAction(DownloadManager.ACTION_DOWNLOAD_COMPLETE);
+        downIntentFilter.addAction(DownloadManager.ACTION_DOWNLOADS_CHANGED);
         LocalBroadcastManager.getInstance(this).registerReceiver(mReceiver, downIntentFilter);
         mDownloadManager = DownloadManager.getInstance(getApplication());
+        mDownloadManager.requestDownloadsSnapshot();
         mListView = (ListView) findViewById(R.id.listview);
         mAdapter = new DownLoadAdapter();
-        mList = new ArrayList<DownloadInfo>();
+        mList = new ArrayList<DownloadSnapshot>();
         mListView.setAdapter(mAdapter);
         tvAddTask = (TextView) findViewById(R.id.add);
         tvAddTask.setOnClickListener(this);
@@ -57,13 +59,24 @@ public class MainActivity extends Activity implements View.OnClickListener {
 
         @Override
         public void onReceive(Context context, Intent intent) {
-            HashMap<Long, DownloadInfo> map= (HashMap<Long, DownloadInfo>) intent.getSerializableExtra("Download");
-            Set<Long> keys = map.keySet();
-            mList.clear();
-            for(Long id:keys){
-                DownloadInfo info = map.get(id);
-                mList.add(info);
+            if (intent.getBooleanExtra(DownloadManager.EXTRA_DOWNLOADS_RESET, false)) {
+                mDownloads.clear();
+            }
+            long[] removed = intent.getLongArrayExtra(DownloadManager.EXTRA_REMOVED_DOWNLOAD_IDS);
+            if (removed != null) {
+                for (long id : removed) {
+                    mDownloads.remove(id);
+                }
             }
+            List<DownloadSnapshot> changed =
+                    intent.getParcelableArrayListExtra(DownloadManager.EXTRA_CHANGED_DOWNLOADS);
+            if (changed != null) {
+                for (DownloadSnapshot snapshot : changed) {
+                    mDownloads.put(snapshot.mId, snapshot);
+                }
+            }
+            mList.clear();
+            mList.addAll(mDownloads.values());
             mAdapter.notifyDataSetChanged();
         }
     };
@@ -106,7 +119,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
 
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
-            final DownloadInfo info =  mList.get(position);
+            final DownloadSnapshot info =  mList.get(position);
             View item = getLayoutInflater().inflate(R.layout.item, null);
             TextView tvName = (TextView) item.findViewById(R.id.tv_name);
             TextView tvPercent = (TextView) item.findViewById(R.id.tv_percent);
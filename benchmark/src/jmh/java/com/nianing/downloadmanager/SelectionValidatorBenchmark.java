@@ -0,0 +1,65 @@
+package com.nianing.downloadmanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of validating the where clauses apps pass to {@link DownloadProvider}, which
+ * happens on every query, update and delete.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SelectionValidatorBenchmark {
+    /** Column names as in {@link Downloads.Columns}, which can't be loaded off the device. */
+    private static final Set<String> COLUMNS = new HashSet<String>(Arrays.asList(
+            "_id", "status", "deleted", "package", "current_bytes", "total_bytes"));
+
+    /** Number of terms in the selection. */
+    @Param({"1", "4", "16"})
+    public int mTerms;
+
+    private String mSelection;
+
+    @Setup
+    public void setUp() {
+        final StringBuilder selection = new StringBuilder();
+        for (int i = 0; i < mTerms; i++) {
+            if (i > 0) {
+                selection.append(i % 2 == 0 ? " AND " : " OR ");
+            }
+            switch (i % 4) {
+                case 0:
+                    selection.append("status >= '200'");
+                    break;
+                case 1:
+                    selection.append("(deleted != '1' AND package = ?)");
+                    break;
+                case 2:
+                    selection.append("_id IS NULL");
+                    break;
+                default:
+                    selection.append("current_bytes < ?");
+                    break;
+            }
+        }
+        mSelection = selection.toString();
+    }
+
+    @Benchmark
+    public String validate() {
+        SelectionValidator.validate(mSelection, COLUMNS);
+        return mSelection;
+    }
+}
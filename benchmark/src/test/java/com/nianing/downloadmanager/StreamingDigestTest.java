@@ -0,0 +1,128 @@
+package com.nianing.downloadmanager;
+
+import junit.framework.TestCase;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Checks {@link StreamingDigest} against known answers and the platform's
+ * {@link MessageDigest}, fed in random pieces and saved and restored in between, the way
+ * a download that is stopped and resumed feeds it.
+ */
+public class StreamingDigestTest extends TestCase {
+    private static final int[] LENGTHS = {
+            0, 1, 55, 56, 57, 63, 64, 65, 119, 120, 127, 128, 129, 1000, 65536 + 7 };
+
+    public void testKnownAnswers() throws Exception {
+        assertDigest(StreamingDigest.SHA256, "",
+                "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855");
+        assertDigest(StreamingDigest.SHA256, "abc",
+                "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+        assertDigest(StreamingDigest.SHA256,
+                "abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq",
+                "248d6a61d20638b8e5c026930c3e6039a33ce45964ff2167f6ecedd419db06c1");
+        assertDigest(StreamingDigest.MD5, "", "d41d8cd98f00b204e9800998ecf8427e");
+        assertDigest(StreamingDigest.MD5, "abc", "900150983cd24fb0d6963f7d28e17f72");
+        assertDigest(StreamingDigest.MD5, "The quick brown fox jumps over the lazy dog",
+                "9e107d9d372bb6826bd81d3542a419d6");
+        assertDigest(StreamingDigest.CRC32C, "", "00000000");
+        assertDigest(StreamingDigest.CRC32C, "123456789", "e3069283");
+    }
+
+    public void testSha256MatchesMessageDigest() throws Exception {
+        assertMatchesMessageDigest(StreamingDigest.SHA256);
+    }
+
+    public void testMd5MatchesMessageDigest() throws Exception {
+        assertMatchesMessageDigest(StreamingDigest.MD5);
+    }
+
+    public void testCrc32cSplitAndRestored() throws Exception {
+        final Random random = new Random(42);
+        for (int length : LENGTHS) {
+            final byte[] data = new byte[length];
+            random.nextBytes(data);
+            final StreamingDigest whole = StreamingDigest.create(StreamingDigest.CRC32C);
+            whole.update(data, 0, data.length);
+            assertEquals("length " + length, StreamingDigest.toHex(whole.digest()),
+                    StreamingDigest.toHex(digestInPieces(StreamingDigest.CRC32C, data, random)));
+        }
+    }
+
+    public void testDigestDoesNotDisturbState() throws Exception {
+        final byte[] data = "hello, world".getBytes("US-ASCII");
+        final StreamingDigest digest = StreamingDigest.create(StreamingDigest.SHA256);
+        digest.update(data, 0, 5);
+        digest.digest();
+        digest.update(data, 5, data.length - 5);
+        assertEquals(StreamingDigest.toHex(MessageDigest.getInstance("SHA-256").digest(data)),
+                StreamingDigest.toHex(digest.digest()));
+    }
+
+    public void testAlgorithmIgnoresCase() {
+        assertNotNull(StreamingDigest.create("sha-256"));
+        assertNotNull(StreamingDigest.create("crc32c"));
+        try {
+            StreamingDigest.create("SHA-1");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testRestoreRejectsMalformedState() {
+        final StreamingDigest digest = StreamingDigest.create(StreamingDigest.SHA256);
+        digest.update(new byte[10], 0, 10);
+        final String saved = digest.saveState();
+        for (String bad : new String[] { "", "abc", "zz", saved.substring(0, 14),
+                saved.substring(0, saved.length() - 2) }) {
+            try {
+                StreamingDigest.create(StreamingDigest.SHA256).restoreState(bad);
+                fail("accepted " + bad);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    private static void assertDigest(String algorithm, String input, String expected)
+            throws Exception {
+        final byte[] data = input.getBytes("US-ASCII");
+        final StreamingDigest digest = StreamingDigest.create(algorithm);
+        digest.update(data, 0, data.length);
+        assertEquals(algorithm + " of \"" + input + "\"", expected,
+                StreamingDigest.toHex(digest.digest()));
+        assertEquals(data.length, digest.getLength());
+    }
+
+    private static void assertMatchesMessageDigest(String algorithm) throws Exception {
+        final Random random = new Random(algorithm.hashCode());
+        for (int length : LENGTHS) {
+            final byte[] data = new byte[length];
+            random.nextBytes(data);
+            assertEquals(algorithm + " of " + length + " bytes",
+                    StreamingDigest.toHex(MessageDigest.getInstance(algorithm).digest(data)),
+                    StreamingDigest.toHex(digestInPieces(algorithm, data, random)));
+        }
+    }
+
+    /**
+     * Digest the given data in random pieces, moving to a new digest restored from the
+     * saved state of the old one after some of them.
+     */
+    private static byte[] digestInPieces(String algorithm, byte[] data, Random random) {
+        StreamingDigest digest = StreamingDigest.create(algorithm);
+        int offset = 0;
+        while (offset < data.length) {
+            final int count = Math.min(data.length - offset, 1 + random.nextInt(200));
+            digest.update(data, offset, count);
+            offset += count;
+            if (random.nextInt(3) == 0) {
+                final StreamingDigest restored = StreamingDigest.create(algorithm);
+                restored.restoreState(digest.saveState());
+                assertEquals(offset, restored.getLength());
+                digest = restored;
+            }
+        }
+        return digest.digest();
+    }
+}